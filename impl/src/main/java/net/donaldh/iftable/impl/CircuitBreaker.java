@@ -0,0 +1,73 @@
+/*
+ * Copyright © 2016 Cisco Systems Inc and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package net.donaldh.iftable.impl;
+
+/**
+ * Stops collecting from a node that keeps failing. After a number of
+ * consecutive failed polls the breaker opens and polls are skipped, apart
+ * from a single probe request on an exponentially growing number of cycles.
+ * The breaker closes again as soon as a probe or poll succeeds.
+ *
+ * <p>Only used from the poll of one node at a time, but the poll completes on
+ * SNMP dispatcher threads, so methods are synchronized.
+ */
+final class CircuitBreaker {
+
+    private final int threshold;
+    private final int maxProbeCycles;
+    private int failures;
+    private int probeCycles;
+    private int skipped;
+
+    /**
+     * @param threshold consecutive failures that open the breaker
+     * @param maxProbeCycles most poll cycles between probes while open
+     */
+    CircuitBreaker(int threshold, int maxProbeCycles) {
+        this.threshold = Math.max(1, threshold);
+        this.maxProbeCycles = Math.max(1, maxProbeCycles);
+    }
+
+    synchronized boolean isOpen() {
+        return failures >= threshold;
+    }
+
+    /**
+     * Called for each poll cycle while the breaker is open.
+     *
+     * @return true if this cycle should send a probe
+     */
+    synchronized boolean shouldProbe() {
+        if (++skipped >= probeCycles) {
+            skipped = 0;
+            return true;
+        }
+        return false;
+    }
+
+    synchronized void success() {
+        failures = 0;
+        probeCycles = 0;
+        skipped = 0;
+    }
+
+    /**
+     * @return true if this failure opened the breaker
+     */
+    synchronized boolean failure() {
+        failures++;
+        if (failures == threshold) {
+            probeCycles = 1;
+            return true;
+        }
+        if (failures > threshold) {
+            probeCycles = Math.min(maxProbeCycles, probeCycles * 2);
+        }
+        return false;
+    }
+}
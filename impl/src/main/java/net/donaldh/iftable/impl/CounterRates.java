@@ -0,0 +1,266 @@
+/*
+ * Copyright © 2016 Cisco Systems Inc and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package net.donaldh.iftable.impl;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.opendaylight.yang.gen.v1.urn.ietf.params.xml.ns.yang.ietf.yang.types.rev130715.Counter32;
+import org.opendaylight.yang.gen.v1.urn.ietf.params.xml.ns.yang.ietf.yang.types.rev130715.Counter64;
+import org.opendaylight.yang.gen.v1.urn.ietf.params.xml.ns.yang.ietf.yang.types.rev130715.Timestamp;
+
+import net.donaldh.snmp.MibColumn;
+import net.donaldh.snmp.MibRow;
+
+/**
+ * Per second rates of the counter columns of a node's rows, computed from the
+ * previous sample of each (ifIndex, column) kept in primitive arrays.
+ *
+ * <p>Counter32 deltas allow for one wrap between polls. A rate is not
+ * reported, and the sample only becomes the new baseline, when sysUpTime went
+ * backwards (the agent restarted), when the row's ifCounterDiscontinuityTime
+ * changed, or when a Counter64 went backwards, which only happens on a reset.
+ *
+ * <p>Like {@link RowSnapshot}, samples of the poll in progress replace the
+ * previous poll on {@link #commit(boolean)}, so interfaces that disappear are
+ * forgotten. Not thread safe; a node is only polled by one thread at a time.
+ */
+final class CounterRates {
+
+    // Timeticks are hundredths of a second
+    private static final double TICKS_PER_SECOND = 100.0;
+    private static final double TWO_TO_64 = 0x1p64;
+    private static final String DISCONTINUITY_COLUMN = "IfCounterDiscontinuityTime";
+
+    private final Map<MibColumn, Integer> columnIds = new IdentityHashMap<>();
+    private SampleTable previous = new SampleTable();
+    private SampleTable current = new SampleTable();
+
+    // Scratch space for the counters of the row being sampled
+    private MibColumn[] counters = new MibColumn[16];
+    private long[] values = new long[16];
+    private boolean[] wide = new boolean[16];
+    private int counterCount;
+    private long discontinuity;
+
+    /**
+     * The rates of one row, by column.
+     */
+    static final class RowRates {
+        private final Map<MibColumn, Integer> columnIds;
+        private final double[] rates;
+
+        RowRates(Map<MibColumn, Integer> columnIds, double[] rates) {
+            this.columnIds = columnIds;
+            this.rates = rates;
+        }
+
+        /**
+         * @return the rate of a counter column per second, or NaN if there is none
+         */
+        double get(MibColumn column) {
+            Integer id = columnIds.get(column);
+            return id == null || id >= rates.length ? Double.NaN : rates[id];
+        }
+    }
+
+    // Collects the counters of the row being sampled
+    private final MibRow.ValueVisitor collector = new MibRow.ValueVisitor() {
+
+        @Override
+        public void visit(MibColumn column, Object value) {
+            collect(column, value);
+        }
+
+    };
+
+    /**
+     * Record the counters of a row and compute their rates against the
+     * previous poll.
+     *
+     * @param upTime sysUpTime of the poll in timeticks
+     */
+    RowRates sample(MibRow<?> row, long upTime) {
+        begin();
+        row.forEachValue(collector);
+        return end(row.getIndex().intValue(), upTime);
+    }
+
+    /*
+     * sample() in steps: begin a row, collect each of its values, and end it
+     * with the row's ifIndex to get its rates.
+     */
+    void begin() {
+        counterCount = 0;
+        discontinuity = 0;
+    }
+
+    void collect(MibColumn column, Object value) {
+        if (value instanceof Counter32) {
+            addCounter(column, ((Counter32) value).getValue(), false);
+        } else if (value instanceof Counter64) {
+            addCounter(column, ((Counter64) value).getValue().longValue(), true);
+        } else if (value instanceof Timestamp && DISCONTINUITY_COLUMN.equals(column.getName())) {
+            discontinuity = ((Timestamp) value).getValue();
+        }
+    }
+
+    RowRates end(int ifIndex, long upTime) {
+        double[] rates = new double[columnIds.size()];
+        Arrays.fill(rates, Double.NaN);
+        for (int i = 0; i < counterCount; i++) {
+            int id = columnIds.get(counters[i]);
+            long key = (ifIndex & 0xffffffffL) << 16 | id;
+            int slot = previous.find(key);
+            if (slot >= 0) {
+                rates[id] = rate(previous, slot, values[i], wide[i], upTime);
+            }
+            current.put(key, values[i], upTime, discontinuity);
+        }
+        return new RowRates(columnIds, rates);
+    }
+
+    private double rate(SampleTable samples, int slot, long value, boolean wideCounter, long upTime) {
+        long elapsed = upTime - samples.upTimes[slot];
+        if (elapsed <= 0 || samples.discontinuities[slot] != discontinuity) {
+            return Double.NaN;
+        }
+        long delta;
+        if (wideCounter) {
+            if (Long.compareUnsigned(value, samples.values[slot]) < 0) {
+                return Double.NaN;
+            }
+            delta = value - samples.values[slot];
+        } else {
+            delta = (value - samples.values[slot]) & 0xffffffffL;
+        }
+        double unsignedDelta = delta >= 0 ? delta : delta + TWO_TO_64;
+        return unsignedDelta * TICKS_PER_SECOND / elapsed;
+    }
+
+    private void addCounter(MibColumn column, long value, boolean wideCounter) {
+        Integer id = columnIds.get(column);
+        if (id == null) {
+            id = columnIds.size();
+            columnIds.put(column, id);
+        }
+        if (counterCount == counters.length) {
+            counters = Arrays.copyOf(counters, counterCount * 2);
+            values = Arrays.copyOf(values, counterCount * 2);
+            wide = Arrays.copyOf(wide, counterCount * 2);
+        }
+        counters[counterCount] = column;
+        values[counterCount] = value;
+        wide[counterCount] = wideCounter;
+        counterCount++;
+    }
+
+    /**
+     * The poll in progress completed; its samples become the baseline.
+     *
+     * @param complete false if the poll ended early, in which case counters it
+     *        did not reach keep their previous sample
+     */
+    void commit(boolean complete) {
+        if (!complete) {
+            current.putAbsent(previous);
+        }
+        SampleTable swap = previous;
+        previous = current;
+        current = swap;
+        current.clear();
+    }
+
+    /**
+     * The poll in progress failed; keep the previous baseline.
+     */
+    void abort() {
+        current.clear();
+    }
+
+    /*
+     * Open addressing map from (ifIndex, column) to the last sample, with
+     * linear probing over parallel arrays.
+     */
+    private static final class SampleTable {
+        private long[] keys = new long[256];
+        private long[] values = new long[256];
+        private long[] upTimes = new long[256];
+        private long[] discontinuities = new long[256];
+        private boolean[] used = new boolean[256];
+        private int size;
+
+        int find(long key) {
+            int mask = keys.length - 1;
+            for (int i = mix(key) & mask; used[i]; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        void put(long key, long value, long upTime, long discontinuity) {
+            if ((size + 1) * 2 > keys.length) {
+                grow();
+            }
+            int mask = keys.length - 1;
+            int i = mix(key) & mask;
+            while (used[i] && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            if (!used[i]) {
+                used[i] = true;
+                keys[i] = key;
+                size++;
+            }
+            values[i] = value;
+            upTimes[i] = upTime;
+            discontinuities[i] = discontinuity;
+        }
+
+        void putAbsent(SampleTable other) {
+            for (int i = 0; i < other.keys.length; i++) {
+                if (other.used[i] && find(other.keys[i]) < 0) {
+                    put(other.keys[i], other.values[i], other.upTimes[i], other.discontinuities[i]);
+                }
+            }
+        }
+
+        void clear() {
+            Arrays.fill(used, false);
+            size = 0;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            long[] oldValues = values;
+            long[] oldUpTimes = upTimes;
+            long[] oldDiscontinuities = discontinuities;
+            boolean[] oldUsed = used;
+            int capacity = oldKeys.length * 2;
+            keys = new long[capacity];
+            values = new long[capacity];
+            upTimes = new long[capacity];
+            discontinuities = new long[capacity];
+            used = new boolean[capacity];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldUsed[i]) {
+                    put(oldKeys[i], oldValues[i], oldUpTimes[i], oldDiscontinuities[i]);
+                }
+            }
+        }
+
+        private static int mix(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+}
@@ -0,0 +1,357 @@
+/*
+ * Copyright © 2016 Cisco Systems Inc and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package net.donaldh.iftable.impl;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.opendaylight.controller.md.sal.binding.api.DataBroker;
+import org.opendaylight.controller.md.sal.binding.api.WriteTransaction;
+import org.opendaylight.controller.md.sal.common.api.data.LogicalDatastoreType;
+import org.opendaylight.yang.gen.v1.urn.net.donaldh._if.table.collector.rev261018.PolledState;
+import org.opendaylight.yang.gen.v1.urn.net.donaldh._if.table.collector.rev261018.network.topology.topology.node.PolledInterfaces;
+import org.opendaylight.yang.gen.v1.urn.net.donaldh._if.table.collector.rev261018.network.topology.topology.node.PolledInterfacesBuilder;
+import org.opendaylight.yang.gen.v1.urn.net.donaldh._if.table.collector.rev261018.network.topology.topology.node.polled.interfaces.Entry;
+import org.opendaylight.yang.gen.v1.urn.net.donaldh._if.table.collector.rev261018.network.topology.topology.node.polled.interfaces.EntryBuilder;
+import org.opendaylight.yang.gen.v1.urn.net.donaldh._if.table.collector.rev261018.network.topology.topology.node.polled.interfaces.EntryKey;
+import org.opendaylight.yang.gen.v1.urn.net.donaldh._if.table.collector.rev261018.network.topology.topology.node.polled.interfaces.entry.Column;
+import org.opendaylight.yang.gen.v1.urn.net.donaldh._if.table.collector.rev261018.network.topology.topology.node.polled.interfaces.entry.ColumnBuilder;
+import org.opendaylight.yangtools.yang.binding.InstanceIdentifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import net.donaldh.snmp.MibColumn;
+import net.donaldh.snmp.MibRow;
+
+/**
+ * Writes the polled rows of nodes to the operational datastore, under
+ * polled-interfaces of each node in topology-netconf. Only rows that changed
+ * are written. The rows of all nodes polled within a window go out in one
+ * write transaction; with no window each poll is a transaction of its own.
+ * Rows that a complete poll no longer finds are deleted. The changes of a
+ * transaction that fails, or that could not be built, are written again with
+ * the next one; rows only count as written once their transaction succeeded.
+ */
+class DatastoreSink implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DatastoreSink.class);
+
+    private final DataBroker dataBroker;
+    private final long windowMillis;
+
+    // Guarded by this. Rows of a node are only in written once their transaction succeeded;
+    // a node is in it as soon as any of its rows have been sent, so remove() knows to delete them.
+    private final Map<String, Pending> pending = new LinkedHashMap<>();
+    private final Map<String, Set<Long>> written = new HashMap<>();
+
+    /*
+     * What a node has to write in the current window.
+     */
+    private static final class Pending {
+        final Map<Long, Entry> puts = new LinkedHashMap<>();
+        final Set<Long> deletes = new HashSet<>();
+        boolean removeAll;
+    }
+
+    /**
+     * The rows of one poll of a node, collected as they arrive.
+     */
+    class Poll {
+        private final String nodeId;
+        private final Set<Long> known;
+        private final List<Entry> changed = new ArrayList<>();
+        private final Set<Long> seen = new HashSet<>();
+
+        Poll(String nodeId, Set<Long> known) {
+            this.nodeId = nodeId;
+            this.known = known;
+        }
+
+        /**
+         * Record a row of the poll.
+         *
+         * @param rowChanged whether the row differs from the last poll; rows
+         *        that did not change are only written if they never were
+         */
+        void add(MibRow<?> row, final CounterRates.RowRates rates, boolean rowChanged) {
+            long ifIndex = row.getIndex().pack();
+            seen.add(ifIndex);
+            if (!rowChanged && known.contains(ifIndex)) {
+                return;
+            }
+            final List<Column> columns = new ArrayList<>();
+            row.forEachValue(new MibRow.ValueVisitor() {
+
+                @Override
+                public void visit(MibColumn column, Object value) {
+                    ColumnBuilder builder = new ColumnBuilder()
+                            .setName(column.getName())
+                            .setValue(column.format(value));
+                    double rate = rates != null ? rates.get(column) : Double.NaN;
+                    if (!Double.isNaN(rate)) {
+                        builder.setRate(new BigDecimal(rate).setScale(3, RoundingMode.HALF_UP));
+                    }
+                    columns.add(builder.build());
+                }
+
+            });
+            changed.add(new EntryBuilder().setKey(new EntryKey(ifIndex)).setIfIndex(ifIndex)
+                    .setColumn(columns).build());
+        }
+
+        /**
+         * The poll ended; write what changed.
+         *
+         * @param complete false if the poll ended early, in which case rows
+         *        it did not reach are kept
+         */
+        void commit(boolean complete) {
+            DatastoreSink.this.commit(this, complete);
+        }
+    }
+
+    /**
+     * @param windowMillis how long to gather the rows of polls into one
+     *        transaction, or 0 to write each poll as it ends
+     * @param timer runs the writes of each window
+     */
+    DatastoreSink(DataBroker dataBroker, long windowMillis, ScheduledExecutorService timer) {
+        this.dataBroker = dataBroker;
+        this.windowMillis = windowMillis;
+        if (windowMillis > 0) {
+            timer.scheduleWithFixedDelay(new Runnable() {
+
+                @Override
+                public void run() {
+                    // An exception would cancel the schedule, and with it every later write
+                    try {
+                        flush();
+                    } catch (RuntimeException e) {
+                        LOG.warn("Failed to write to the operational datastore", e);
+                    }
+                }
+
+            }, windowMillis, windowMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /*
+     * The rows of a node that are written, or will be by what is pending.
+     */
+    synchronized Poll begin(String nodeId) {
+        Set<Long> known = new HashSet<>();
+        Set<Long> present = written.get(nodeId);
+        Pending node = pending.get(nodeId);
+        if (present != null && (node == null || !node.removeAll)) {
+            known.addAll(present);
+        }
+        if (node != null) {
+            known.removeAll(node.deletes);
+            known.addAll(node.puts.keySet());
+        }
+        return new Poll(nodeId, known);
+    }
+
+    /**
+     * Delete everything written for a node, e.g. when it is removed or stops
+     * writing to the datastore.
+     */
+    void remove(String nodeId) {
+        synchronized (this) {
+            // Forgotten before the deletion succeeds, which at worst writes rows again
+            if (written.remove(nodeId) == null && !pending.containsKey(nodeId)) {
+                return;
+            }
+            Pending node = new Pending();
+            node.removeAll = true;
+            pending.put(nodeId, node);
+        }
+        if (windowMillis <= 0) {
+            flush();
+        }
+    }
+
+    private void commit(Poll poll, boolean complete) {
+        synchronized (this) {
+            Pending node = pending.get(poll.nodeId);
+            if (node == null) {
+                node = new Pending();
+                pending.put(poll.nodeId, node);
+            }
+            if (complete) {
+                Set<Long> present = new HashSet<>(node.puts.keySet());
+                Set<Long> confirmed = written.get(poll.nodeId);
+                if (confirmed != null && !node.removeAll) {
+                    present.addAll(confirmed);
+                }
+                for (Long ifIndex : present) {
+                    if (!poll.seen.contains(ifIndex)) {
+                        node.deletes.add(ifIndex);
+                        node.puts.remove(ifIndex);
+                    }
+                }
+            }
+            for (Entry entry : poll.changed) {
+                node.puts.put(entry.getIfIndex(), entry);
+                node.deletes.remove(entry.getIfIndex());
+            }
+        }
+        if (windowMillis <= 0) {
+            flush();
+        }
+    }
+
+    /**
+     * Write everything pending in one transaction.
+     */
+    void flush() {
+        final Map<String, Pending> nodes;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            nodes = new LinkedHashMap<>(pending);
+            pending.clear();
+            for (Map.Entry<String, Pending> node : nodes.entrySet()) {
+                if (!node.getValue().puts.isEmpty() && !written.containsKey(node.getKey())) {
+                    written.put(node.getKey(), new HashSet<Long>());
+                }
+            }
+        }
+        final int nodeCount = nodes.size();
+        int rows = 0;
+        WriteTransaction tx = null;
+        ListenableFuture<Void> submitted;
+        try {
+            tx = dataBroker.newWriteOnlyTransaction();
+            for (Map.Entry<String, Pending> node : nodes.entrySet()) {
+                InstanceIdentifier<PolledInterfaces> path = IfTableCollectorProvider.nodePath(node.getKey())
+                        .augmentation(PolledState.class)
+                        .child(PolledInterfaces.class);
+                Pending changes = node.getValue();
+                if (changes.removeAll) {
+                    tx.delete(LogicalDatastoreType.OPERATIONAL, path);
+                    if (changes.puts.isEmpty()) {
+                        continue;
+                    }
+                }
+                tx.merge(LogicalDatastoreType.OPERATIONAL, path,
+                        new PolledInterfacesBuilder().setPolledAt(BigInteger.valueOf(System.currentTimeMillis()))
+                                .build(),
+                        true);
+                for (Long ifIndex : changes.deletes) {
+                    tx.delete(LogicalDatastoreType.OPERATIONAL, path.child(Entry.class, new EntryKey(ifIndex)));
+                }
+                for (Entry entry : changes.puts.values()) {
+                    tx.put(LogicalDatastoreType.OPERATIONAL, path.child(Entry.class, entry.getKey()), entry);
+                }
+                rows += changes.puts.size();
+            }
+            submitted = tx.submit();
+        } catch (RuntimeException e) {
+            LOG.warn("Failed to write {} nodes to the operational datastore, will retry", nodeCount, e);
+            if (tx != null) {
+                tx.cancel();
+            }
+            requeue(nodes);
+            return;
+        }
+        final int total = rows;
+        Futures.addCallback(submitted, new FutureCallback<Void>() {
+
+            @Override
+            public void onSuccess(Void result) {
+                LOG.debug("Wrote {} rows of {} nodes to the operational datastore", total, nodeCount);
+                confirm(nodes);
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                LOG.warn("Failed to write {} rows of {} nodes to the operational datastore, will retry",
+                        total, nodeCount, e);
+                requeue(nodes);
+            }
+
+        });
+    }
+
+    /*
+     * The changes of a transaction are in the datastore. Should transactions
+     * complete out of order, rows may be forgotten here that are still
+     * written, which only costs writing them again.
+     */
+    private synchronized void confirm(Map<String, Pending> succeeded) {
+        for (Map.Entry<String, Pending> node : succeeded.entrySet()) {
+            Pending changes = node.getValue();
+            Set<Long> present = written.get(node.getKey());
+            if (changes.removeAll && changes.puts.isEmpty()) {
+                if (present != null && present.isEmpty()) {
+                    written.remove(node.getKey());
+                }
+                continue;
+            }
+            if (present == null) {
+                // Removed while the transaction was in flight; remove() has queued the deletion
+                continue;
+            }
+            if (changes.removeAll) {
+                present.clear();
+            }
+            present.removeAll(changes.deletes);
+            present.addAll(changes.puts.keySet());
+        }
+    }
+
+    /*
+     * Put the changes of a failed transaction back in front of what has been
+     * queued since, so the next write carries both. Later changes win.
+     */
+    private synchronized void requeue(Map<String, Pending> failed) {
+        for (Map.Entry<String, Pending> node : failed.entrySet()) {
+            Pending earlier = node.getValue();
+            Pending later = pending.get(node.getKey());
+            if (later == null) {
+                pending.put(node.getKey(), earlier);
+                continue;
+            }
+            if (later.removeAll) {
+                continue;
+            }
+            later.removeAll = earlier.removeAll;
+            for (Map.Entry<Long, Entry> put : earlier.puts.entrySet()) {
+                if (!later.puts.containsKey(put.getKey()) && !later.deletes.contains(put.getKey())) {
+                    later.puts.put(put.getKey(), put.getValue());
+                }
+            }
+            for (Long ifIndex : earlier.deletes) {
+                if (!later.puts.containsKey(ifIndex)) {
+                    later.deletes.add(ifIndex);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        flush();
+    }
+}
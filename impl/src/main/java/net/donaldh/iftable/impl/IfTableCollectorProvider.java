@@ -7,63 +7,257 @@
  */
 package net.donaldh.iftable.impl;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import org.opendaylight.controller.md.sal.binding.api.DataBroker;
 import org.opendaylight.controller.md.sal.dom.api.DOMNotificationPublishService;
+import org.opendaylight.controller.sal.binding.api.BindingAwareBroker.RoutedRpcRegistration;
+import org.opendaylight.controller.sal.binding.api.RpcProviderRegistry;
 import org.opendaylight.controller.messagebus.spi.EventSource;
 import org.opendaylight.controller.messagebus.spi.EventSourceRegistration;
 import org.opendaylight.controller.messagebus.spi.EventSourceRegistry;
+import org.opendaylight.yang.gen.v1.urn.net.donaldh._if.table.collector.rev261018.IfTableCollectorService;
+import org.opendaylight.yang.gen.v1.urn.net.donaldh._if.table.collector.rev261018.NodeContext;
+import org.opendaylight.yang.gen.v1.urn.net.donaldh._if.table.collector.rev261018.SnmpAttrs;
+import org.opendaylight.yang.gen.v1.urn.tbd.params.xml.ns.yang.network.topology.rev131021.NetworkTopology;
+import org.opendaylight.yang.gen.v1.urn.tbd.params.xml.ns.yang.network.topology.rev131021.NodeId;
+import org.opendaylight.yang.gen.v1.urn.tbd.params.xml.ns.yang.network.topology.rev131021.TopologyId;
+import org.opendaylight.yang.gen.v1.urn.tbd.params.xml.ns.yang.network.topology.rev131021.network.topology.Topology;
+import org.opendaylight.yang.gen.v1.urn.tbd.params.xml.ns.yang.network.topology.rev131021.network.topology.TopologyKey;
+import org.opendaylight.yang.gen.v1.urn.tbd.params.xml.ns.yang.network.topology.rev131021.network.topology.topology.Node;
+import org.opendaylight.yang.gen.v1.urn.tbd.params.xml.ns.yang.network.topology.rev131021.network.topology.topology.NodeKey;
+import org.opendaylight.yangtools.yang.binding.InstanceIdentifier;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.snmp4j.Snmp;
-import org.snmp4j.transport.DefaultUdpTransportMapping;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import net.donaldh.snmp.DeviceProfiles;
+import net.donaldh.snmp.SnmpTransportPool;
 
 public class IfTableCollectorProvider {
 
     private static final Logger LOG = LoggerFactory.getLogger(IfTableCollectorProvider.class);
 
+    static final long DEFAULT_POLL_INTERVAL = 60;
+    static final int POLL_WORKERS = 16;
+    static final int POLL_QUEUE_SIZE = 1024;
+
+    // SNMP transport sizing, overridable with system properties
+    static final int SNMP_SOCKETS = Integer.getInteger("iftable.snmp.sockets", 4);
+    static final int SNMP_DISPATCHERS = Integer.getInteger("iftable.snmp.dispatchers",
+            Runtime.getRuntime().availableProcessors());
+    static final int SNMP_RECEIVE_BUFFER = Integer.getInteger("iftable.snmp.receive-buffer", 4 * 1024 * 1024);
+
+    // Node host names are resolved again this often, on a thread of their own
+    static final long TARGET_TTL_SECONDS = Long.getLong("iftable.target-ttl", 300);
+
+    // What has been learned about each device's GETBULK limits is saved this often and on close
+    static final long PROFILE_SAVE_MINUTES = 10;
+    static final String PROFILE_FILE = "if-table-collector/device-profiles.properties";
+
+    // Datastore writes of all nodes polled within this many milliseconds share a transaction; 0 writes each poll
+    static final long DATASTORE_WINDOW_MILLIS = Long.getLong("iftable.datastore-window", 0);
+
+    private static final InstanceIdentifier<Topology> TOPOLOGY = InstanceIdentifier
+            .create(NetworkTopology.class)
+            .child(Topology.class, new TopologyKey(new TopologyId("topology-netconf")));
+
     private final EventSourceRegistry eventSourceRegistry;
-    private final DOMNotificationPublishService publishService;
-    private final ScheduledExecutorService scheduler;
-    private Snmp snmp;
+    private final PollScheduler scheduler;
+    private final NotificationPublisher publisher;
+    private final SnmpTransportPool transports;
+    private final DeviceProfiles profiles;
+    private final ScheduledExecutorService resolver;
+    private final DatastoreSink datastoreSink;
+    private final RoutedRpcRegistration<IfTableCollectorService> rpcRegistration;
 
     class EventSourceHandle {
         final IfTableEventSource eventSource;
         final EventSourceRegistration<EventSource> registration;
+        long pollInterval;
 
-        EventSourceHandle(IfTableEventSource source) {
+        EventSourceHandle(IfTableEventSource source, long pollInterval) {
             eventSource = source;
             registration = eventSourceRegistry.registerEventSource(eventSource);
+            this.pollInterval = pollInterval;
         }
     }
 
-    private Map<String, EventSourceHandle> eventSources = new HashMap<>();
+    private Map<String, EventSourceHandle> eventSources = new ConcurrentHashMap<>();
 
     public IfTableCollectorProvider(final DataBroker dataBroker, final EventSourceRegistry eventSourceRegistry,
-            final DOMNotificationPublishService publishService) throws IOException {
+            final DOMNotificationPublishService publishService, final RpcProviderRegistry rpcRegistry)
+            throws IOException {
         this.eventSourceRegistry = eventSourceRegistry;
-        this.publishService = publishService;
-        scheduler = Executors.newScheduledThreadPool(1);
-        snmp = new Snmp(new DefaultUdpTransportMapping());
-        snmp.listen();
+        scheduler = new PollScheduler(POLL_WORKERS, POLL_QUEUE_SIZE);
+        publisher = new NotificationPublisher(publishService, scheduler.getTimer());
+        transports = new SnmpTransportPool(SNMP_SOCKETS, SNMP_DISPATCHERS, SNMP_RECEIVE_BUFFER);
+        datastoreSink = new DatastoreSink(dataBroker, DATASTORE_WINDOW_MILLIS, scheduler.getTimer());
+        profiles = new DeviceProfiles(new File(System.getProperty("karaf.data", "data"), PROFILE_FILE));
+        scheduler.getTimer().scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                profiles.save();
+            }
+
+        }, PROFILE_SAVE_MINUTES, PROFILE_SAVE_MINUTES, TimeUnit.MINUTES);
+
+        // Host name lookups and SNMPv3 engine discovery block, so they run here and never on a poll worker
+        resolver = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("if-table-resolver").setDaemon(true).build());
+        resolver.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                for (EventSourceHandle handle : eventSources.values()) {
+                    handle.eventSource.getTarget().refresh();
+                }
+            }
+
+        }, TARGET_TTL_SECONDS, TARGET_TTL_SECONDS, TimeUnit.SECONDS);
+
+        rpcRegistration = rpcRegistry.addRoutedRpcImplementation(IfTableCollectorService.class,
+                new IfTableCollectorRpcs(this));
+    }
+
+    /**
+     * The path of a node in topology-netconf.
+     */
+    static InstanceIdentifier<Node> nodePath(String id) {
+        return TOPOLOGY.child(Node.class, new NodeKey(new NodeId(id)));
+    }
+
+    void addNode(final String id, String address, SnmpAttrs params) {
+        // A node added again replaces the previous one, registration and all
+        removeNode(id);
+        final IfTableEventSource eventSource;
+        try {
+            eventSource = new IfTableEventSource(publisher, transports, profiles.get(address), resolver,
+                    address, params);
+        } catch (IllegalArgumentException e) {
+            LOG.warn("Not collecting from {}: {}", id, e.getMessage());
+            return;
+        }
+        long pollInterval = pollIntervalOf(params);
+        eventSource.setDatastoreSink(writesDatastore(params) ? datastoreSink : null, id);
+        eventSource.setSubscriptionListener(new Runnable() {
+
+            @Override
+            public void run() {
+                scheduler.trigger(id);
+            }
+
+        });
+        resolver.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                eventSource.getTarget().refresh();
+            }
+
+        });
+        eventSources.put(id, new EventSourceHandle(eventSource, pollInterval));
+        scheduler.schedule(id, new PollScheduler.Poll() {
+
+            @Override
+            public ListenableFuture<?> start() {
+                return eventSource.poll();
+            }
+
+        }, pollInterval);
+        rpcRegistration.registerPath(NodeContext.class, nodePath(id));
     }
 
-    void addNode(String id, String address, String community, int port, Long pollInterval) {
-        IfTableEventSource eventSource = new IfTableEventSource(publishService, snmp, address, community, port);
-        eventSources.put(id, new EventSourceHandle(eventSource));
+    /**
+     * The event source of a collected node, or null.
+     */
+    IfTableEventSource getEventSource(String id) {
+        EventSourceHandle handle = eventSources.get(id);
+        return handle != null ? handle.eventSource : null;
+    }
+
+    /**
+     * Poll a node now, publishing every row, or wait for its poll in
+     * progress. The on-demand poll takes the place of a scheduled one, so
+     * the node is still never polled twice at once.
+     *
+     * @return a future that completes when the poll is done, or null if the
+     *         node is not collected
+     */
+    ListenableFuture<Void> repoll(String id) {
+        final IfTableEventSource eventSource = getEventSource(id);
+        if (eventSource == null) {
+            return null;
+        }
+        return scheduler.pollNow(id, new PollScheduler.Poll() {
+
+            @Override
+            public ListenableFuture<?> start() {
+                return eventSource.repoll();
+            }
+
+        });
+    }
+
+    /**
+     * Apply changed settings to a node that is already collected. The node
+     * keeps its event source, so its counter baselines, published rows and
+     * what has been learned about the device survive, and it is only
+     * rescheduled if its poll interval changed. A new host is a different
+     * device and starts afresh.
+     */
+    void updateNode(String id, String address, SnmpAttrs params) {
+        EventSourceHandle handle = eventSources.get(id);
+        if (handle == null || !handle.eventSource.getTarget().getHost().equals(address)) {
+            addNode(id, address, params);
+            return;
+        }
+        try {
+            handle.eventSource.reconfigure(params);
+        } catch (IllegalArgumentException e) {
+            LOG.warn("Keeping previous settings of {}: {}", id, e.getMessage());
+            return;
+        }
+        if (writesDatastore(params)) {
+            handle.eventSource.setDatastoreSink(datastoreSink, id);
+        } else {
+            handle.eventSource.setDatastoreSink(null, id);
+            datastoreSink.remove(id);
+        }
+        long pollInterval = pollIntervalOf(params);
+        if (pollInterval != handle.pollInterval) {
+            handle.pollInterval = pollInterval;
+            scheduler.reschedule(id, pollInterval);
+        }
+        LOG.info("Updated settings of {}", id);
+    }
+
+    private static boolean writesDatastore(SnmpAttrs params) {
+        return Boolean.TRUE.equals(params.isWriteDatastore());
+    }
+
+    private static long pollIntervalOf(SnmpAttrs params) {
+        return params.getPollInterval() != null ? params.getPollInterval() : DEFAULT_POLL_INTERVAL;
     }
 
     void removeNode(String id) {
+        scheduler.cancel(id);
         EventSourceHandle handle = eventSources.remove(id);
         if (handle != null) {
             handle.registration.close();
+            handle.eventSource.close();
+            rpcRegistration.unregisterPath(NodeContext.class, nodePath(id));
         }
+        datastoreSink.remove(id);
     }
 
     /**
@@ -71,27 +265,23 @@ public class IfTableCollectorProvider {
      */
     public void init() {
         LOG.info("SoamProvider Session Initiated");
-        scheduler.scheduleAtFixedRate(new Runnable() {
-
-            @Override
-            public void run() {
-                try {
-                    for (EventSourceHandle handle : eventSources.values()) {
-                        handle.eventSource.execute();
-                    }
-                } catch (Throwable e) {
-                    LOG.error(e.getClass().getName() + " : " + e.getLocalizedMessage());
-                }
-            }
-
-        }, 60, 60, TimeUnit.SECONDS);
     }
 
     /**
      * Method called when the blueprint container is destroyed.
      */
     public void close() {
-        scheduler.shutdown();
+        for (EventSourceHandle handle : eventSources.values()) {
+            handle.registration.close();
+            handle.eventSource.close();
+        }
+        eventSources.clear();
+        rpcRegistration.close();
+        datastoreSink.close();
+        scheduler.close();
+        resolver.shutdownNow();
+        transports.close();
+        profiles.save();
         LOG.info("SoamProvider Closed");
     }
 
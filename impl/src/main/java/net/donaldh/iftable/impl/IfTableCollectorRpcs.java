@@ -0,0 +1,100 @@
+/*
+ * Copyright © 2016 Cisco Systems Inc and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package net.donaldh.iftable.impl;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+
+import org.opendaylight.yang.gen.v1.urn.net.donaldh._if.table.collector.rev261018.IfTableCollectorService;
+import org.opendaylight.yang.gen.v1.urn.net.donaldh._if.table.collector.rev261018.RepollInput;
+import org.opendaylight.yang.gen.v1.urn.net.donaldh._if.table.collector.rev261018.SnmpWalkInput;
+import org.opendaylight.yang.gen.v1.urn.net.donaldh._if.table.collector.rev261018.SnmpWalkOutput;
+import org.opendaylight.yang.gen.v1.urn.tbd.params.xml.ns.yang.network.topology.rev131021.network.topology.topology.Node;
+import org.opendaylight.yang.gen.v1.urn.tbd.params.xml.ns.yang.network.topology.rev131021.network.topology.topology.NodeKey;
+import org.opendaylight.yangtools.yang.binding.InstanceIdentifier;
+import org.opendaylight.yangtools.yang.common.RpcError.ErrorType;
+import org.opendaylight.yangtools.yang.common.RpcResult;
+import org.opendaylight.yangtools.yang.common.RpcResultBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * The RPCs of if-table-collector, routed to collected nodes. They go through
+ * the node's event source, so they use its pooled SNMP session, resolved
+ * target and request settings rather than a session of their own.
+ */
+class IfTableCollectorRpcs implements IfTableCollectorService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IfTableCollectorRpcs.class);
+
+    private final IfTableCollectorProvider provider;
+
+    IfTableCollectorRpcs(IfTableCollectorProvider provider) {
+        this.provider = provider;
+    }
+
+    @Override
+    public Future<RpcResult<SnmpWalkOutput>> snmpWalk(SnmpWalkInput input) {
+        String id = nodeIdOf(input.getNode());
+        IfTableEventSource source = id != null ? provider.getEventSource(id) : null;
+        if (source == null) {
+            return failed("Not a collected node: " + input.getNode());
+        }
+        try {
+            return toRpcResult(source.walk(input.getOid()), "Walk of " + input.getOid() + " from " + id);
+        } catch (IllegalArgumentException e) {
+            return failed(e.getMessage());
+        }
+    }
+
+    @Override
+    public Future<RpcResult<Void>> repoll(RepollInput input) {
+        String id = nodeIdOf(input.getNode());
+        ListenableFuture<Void> poll = id != null ? provider.repoll(id) : null;
+        if (poll == null) {
+            return failed("Not a collected node: " + input.getNode());
+        }
+        return toRpcResult(poll, "Poll of " + id);
+    }
+
+    private static String nodeIdOf(InstanceIdentifier<?> node) {
+        NodeKey key = node != null ? node.firstKeyOf(Node.class, NodeKey.class) : null;
+        return key != null ? key.getNodeId().getValue() : null;
+    }
+
+    private static <T> ListenableFuture<RpcResult<T>> toRpcResult(ListenableFuture<T> future, final String what) {
+        final SettableFuture<RpcResult<T>> rpcResult = SettableFuture.create();
+        Futures.addCallback(future, new FutureCallback<T>() {
+
+            @Override
+            public void onSuccess(T result) {
+                rpcResult.set(RpcResultBuilder.success(result).build());
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                LOG.warn("{} failed: {}", what, e.getMessage());
+                ErrorType type = e instanceof TimeoutException ? ErrorType.TRANSPORT : ErrorType.APPLICATION;
+                rpcResult.set(RpcResultBuilder.<T>failed()
+                        .withError(type, what + " failed: " + e.getMessage()).build());
+            }
+
+        });
+        return rpcResult;
+    }
+
+    private static <T> ListenableFuture<RpcResult<T>> failed(String message) {
+        return Futures.immediateFuture(RpcResultBuilder.<T>failed()
+                .withError(ErrorType.APPLICATION, message).build());
+    }
+}
@@ -2,24 +2,25 @@ package net.donaldh.iftable.impl;
 
 import static com.google.common.util.concurrent.Futures.immediateFuture;
 
-import java.lang.reflect.Method;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Pattern;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.dom.DOMSource;
 
-import org.opendaylight.controller.md.sal.dom.api.DOMNotificationPublishService;
 import org.opendaylight.controller.messagebus.app.util.TopicDOMNotification;
 import org.opendaylight.controller.messagebus.spi.EventSource;
-import org.opendaylight.snmp.OID;
 import org.opendaylight.yang.gen.v1.urn.cisco.params.xml.ns.yang.messagebus.eventaggregator.rev141202.TopicId;
 import org.opendaylight.yang.gen.v1.urn.cisco.params.xml.ns.yang.messagebus.eventaggregator.rev141202.TopicNotification;
 import org.opendaylight.yang.gen.v1.urn.cisco.params.xml.ns.yang.messagebus.eventsource.rev141202.DisJoinTopicInput;
@@ -27,7 +28,15 @@ import org.opendaylight.yang.gen.v1.urn.cisco.params.xml.ns.yang.messagebus.even
 import org.opendaylight.yang.gen.v1.urn.cisco.params.xml.ns.yang.messagebus.eventsource.rev141202.JoinTopicOutput;
 import org.opendaylight.yang.gen.v1.urn.cisco.params.xml.ns.yang.messagebus.eventsource.rev141202.JoinTopicOutputBuilder;
 import org.opendaylight.yang.gen.v1.urn.cisco.params.xml.ns.yang.messagebus.eventsource.rev141202.JoinTopicStatus;
+import org.opendaylight.yang.gen.v1.urn.ietf.params.xml.ns.yang.smiv2._if.mib.rev000614.IfEntry1Builder;
+import org.opendaylight.yang.gen.v1.urn.ietf.params.xml.ns.yang.smiv2._if.mib.rev000614.ifmibobjects.group.IfRcvAddressEntryBuilder;
+import org.opendaylight.yang.gen.v1.urn.ietf.params.xml.ns.yang.smiv2._if.mib.rev000614.ifmibobjects.group.IfStackEntryBuilder;
 import org.opendaylight.yang.gen.v1.urn.ietf.params.xml.ns.yang.smiv2._if.mib.rev000614.interfaces.group.IfEntryBuilder;
+import org.opendaylight.yang.gen.v1.urn.net.donaldh._if.table.collector.rev261018.SnmpAttrs;
+import org.opendaylight.yang.gen.v1.urn.net.donaldh._if.table.collector.rev261018.SnmpWalkOutput;
+import org.opendaylight.yang.gen.v1.urn.net.donaldh._if.table.collector.rev261018.SnmpWalkOutputBuilder;
+import org.opendaylight.yang.gen.v1.urn.net.donaldh._if.table.collector.rev261018.snmp.walk.output.Results;
+import org.opendaylight.yang.gen.v1.urn.net.donaldh._if.table.collector.rev261018.snmp.walk.output.ResultsBuilder;
 import org.opendaylight.yang.gen.v1.urn.tbd.params.xml.ns.yang.network.topology.rev131021.NodeId;
 import org.opendaylight.yang.gen.v1.urn.tbd.params.xml.ns.yang.network.topology.rev131021.network.topology.topology.NodeKey;
 import org.opendaylight.yangtools.yang.common.QName;
@@ -42,45 +51,156 @@ import org.opendaylight.yangtools.yang.model.api.SchemaPath;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.snmp4j.Snmp;
+import org.snmp4j.Target;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.VariableBinding;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
+import com.google.common.base.Function;
 import com.google.common.base.Optional;
-
+import com.google.common.base.Supplier;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import net.donaldh.snmp.DeviceProfile;
+import net.donaldh.snmp.MibRow;
 import net.donaldh.snmp.MibTable;
+import net.donaldh.snmp.NodeTarget;
+import net.donaldh.snmp.RequestGate;
+import net.donaldh.snmp.RequestPolicy;
+import net.donaldh.snmp.RowCache;
+import net.donaldh.snmp.SnmpCredentials;
+import net.donaldh.snmp.SnmpSettings;
+import net.donaldh.snmp.SnmpTransportPool;
+import net.donaldh.snmp.TableWalker;
+import net.donaldh.snmp.UsmEngines;
 
 public class IfTableEventSource implements EventSource {
 
 	private static final Logger LOG = LoggerFactory.getLogger(IfTableEventSource.class);
     private final java.lang.String name = "if-table-collector";
     private final java.lang.String namespace = "urn:net:donaldh:if-table-collector";
-    private final java.lang.String revision = "2017-02-22";
+    private final java.lang.String revision = "2026-10-18";
 
     public static final String XMLNS_ATTRIBUTE_KEY = "xmlns";
     public static final String XMLNS_URI = "http://www.w3.org/2000/xmlns/";
 
+    static final int SNMP_PORT = 161;
+    static final String SNMP_V3 = "v3";
+
+    private static final OID SYS_UPTIME = new OID(SnmpSettings.SYS_UPTIME_OID);
+    private static final OID IF_NUMBER = new OID("1.3.6.1.2.1.2.1");
+    private static final OID IF_TABLE_LAST_CHANGE = new OID("1.3.6.1.2.1.31.1.5");
+    private static final OID IF_STACK_LAST_CHANGE = new OID("1.3.6.1.2.1.31.1.6");
+
+    // Names of the further tables a node may collect, as in the tables leaf-list
+    static final String STACK_TABLE = "ifStackTable";
+    static final String RCV_ADDRESS_TABLE = "ifRcvAddressTable";
+
+    private static final Pattern NUMERIC_OID = Pattern.compile("\\.?\\d+(\\.\\d+)*");
+
+    // Columns that hardly ever change; they are cached and only walked again when the device reports a change
+    static final List<String> CONFIG_COLUMNS = Collections.unmodifiableList(Arrays.asList(
+            "IfDescr", "IfType", "IfMtu", "IfSpeed", "IfPhysAddress", "IfName", "IfHighSpeed", "IfConnectorPresent"));
+    // Cached columns are walked again at least once in this many polls
+    static final int CONFIG_MAX_AGE_CYCLES = 30;
+
+    // Without subscribers a node is only probed for liveness once in this many polls
+    static final int IDLE_PROBE_CYCLES = 10;
+
+    // Request timeout in milliseconds and retries, unless configured for the node
+    static final long DEFAULT_TIMEOUT = 3000;
+    static final int DEFAULT_RETRIES = 2;
+
+    // Requests outstanding to a device at once, unless configured for the node, and most waiting behind them
+    static final int DEFAULT_MAX_REQUESTS = 2;
+    static final int MAX_QUEUED_REQUESTS = 64;
+
+    // Failed polls after which a node is only probed, and the most cycles between probes
+    static final int BREAKER_THRESHOLD = 3;
+    static final int BREAKER_MAX_PROBE_CYCLES = 16;
+
+    private static final RowEncoder<IfEntryBuilder> ENTRY_ENCODER = new RowEncoder<>(IfEntryBuilder.class);
+    private static final RowEncoder<IfStackEntryBuilder> STACK_ENCODER = new RowEncoder<>(IfStackEntryBuilder.class);
+    private static final RowEncoder<IfRcvAddressEntryBuilder> RCV_ADDRESS_ENCODER =
+            new RowEncoder<>(IfRcvAddressEntryBuilder.class);
+
     private static final NodeIdentifier TOPIC_NOTIFICATION_ARG = new NodeIdentifier(TopicNotification.QNAME);
     private static final NodeIdentifier EVENT_SOURCE_ARG = new NodeIdentifier(QName.create(TopicNotification.QNAME, "node-id").intern());
     private static final NodeIdentifier TOPIC_ID_ARG = new NodeIdentifier(QName.create(TopicNotification.QNAME, "topic-id").intern());
     private static final NodeIdentifier PAYLOAD_ARG = new NodeIdentifier(QName.create(TopicNotification.QNAME, "payload").intern());
+    private static final Optional<String> PAYLOAD_NAMESPACE = Optional.of(PAYLOAD_ARG.getNodeType().getNamespace().toString());
 
-	private final DOMNotificationPublishService publishService;
+	private final NotificationPublisher publisher;
 	private final Snmp snmp;
+	private final DeviceProfile profile;
+	private final UsmEngines engines;
+	// Runs blocking work of the node, such as engine discovery
+	private final Executor resolver;
+	// Guarded by this
+	private SettableFuture<Void> discovery;
 
 	private final String address;
-	private final String community;
-	private final int port;
+	private final NodeTarget target;
+	// Settings that may change while the node is polled, see reconfigure()
+	private volatile long fullSyncCycles;
+	private volatile long batchSize;
+	private volatile List<String> columns;
+	private volatile RequestPolicy policy;
+	private volatile boolean collectStack;
+	private volatile boolean collectRcvAddresses;
+	private final CircuitBreaker breaker = new CircuitBreaker(BREAKER_THRESHOLD, BREAKER_MAX_PROBE_CYCLES);
+	// Every request to the node goes through here, so overlapping walks take turns
+	private final RequestGate gate = new RequestGate(DEFAULT_MAX_REQUESTS, MAX_QUEUED_REQUESTS);
 
 	private final NodeKey nodeKey;
 	private final List<SchemaPath> schemaPaths = new ArrayList<>();
-	private Set<TopicId> acceptedTopics = new HashSet<>();
-
-	public IfTableEventSource(DOMNotificationPublishService publishService, Snmp snmp, String address, String community, int port) {
-		this.publishService = publishService;
-		this.snmp = snmp;
+	private final Set<TopicId> acceptedTopics = Collections.newSetFromMap(new ConcurrentHashMap<TopicId, Boolean>());
+	private volatile Runnable subscriptionListener;
+	private volatile DatastoreSink datastoreSink;
+	private volatile String nodeId;
+	private volatile boolean resync;
+	private volatile boolean closed;
+	private long idleCycles;
+
+	// Fingerprints of the rows published by the last poll, for delta publishing
+	private final RowSnapshot snapshot = new RowSnapshot();
+	// Previous counter samples, for the rates published with each row
+	private final CounterRates rates = new CounterRates();
+	private long cycle;
+
+	// Values of CONFIG_COLUMNS, and the device's state when they were last walked
+	private final RowCache configCache = new RowCache(CONFIG_COLUMNS);
+	private boolean configRefresh;
+	private long configUpTime = -1;
+	private long configIfNumber = -1;
+	private long configLastChange = -1;
+	private int configAge;
+
+	// Rows of the further tables published by their last walk, and ifStackLastChange then and now
+	private final RowSnapshot stackSnapshot = new RowSnapshot();
+	private final RowSnapshot rcvAddressSnapshot = new RowSnapshot();
+	private long stackLastChange = -1;
+	private long polledStackLastChange = -1;
+
+	/**
+	 * @param resolver runs blocking work for the node off the poll path
+	 * @throws IllegalArgumentException if the node's SNMPv3 settings are inconsistent
+	 */
+	public IfTableEventSource(NotificationPublisher publisher, SnmpTransportPool transports, DeviceProfile profile,
+	        Executor resolver, String address, SnmpAttrs params) {
+		this.publisher = publisher;
+		this.resolver = resolver;
+		this.snmp = transports.forAddress(address);
+		this.engines = transports.getEngines();
+		this.profile = profile;
 		this.address = address;
-		this.community = community;
-		this.port = port;
+		this.target = new NodeTarget(address, portOf(params), credentialsOf(params));
+		configure(params);
 
         nodeKey = new NodeKey(new NodeId(address));
 		schemaPaths.add(SchemaPath.create(true, QName.create(namespace, revision, name)));
@@ -102,15 +222,31 @@ public class IfTableEventSource implements EventSource {
 	public Future<RpcResult<JoinTopicOutput>> joinTopic(JoinTopicInput input) {
 		LOG.info("Node {} Join topic {}", address, input.getTopicId().getValue());
 		boolean added = acceptedTopics.add(input.getTopicId());
+		if (added && acceptedTopics.size() == 1) {
+			// First subscriber: publish everything and start full rate collection now
+			resync = true;
+			Runnable listener = subscriptionListener;
+			if (listener != null) {
+				listener.run();
+			}
+		}
 		final JoinTopicOutput output = new JoinTopicOutputBuilder().setStatus(
 				added ? JoinTopicStatus.Up : JoinTopicStatus.Down).build();
         return immediateFuture(RpcResultBuilder.success(output).build());
 	}
 
+	/**
+	 * Stop collecting from the node. Topics are dropped and later polls do
+	 * nothing; a poll in progress finishes its walks but publishes and
+	 * stores nothing.
+	 */
 	@Override
-	public void close() throws Exception {
-		// TODO Auto-generated method stub
-
+	public void close() {
+		closed = true;
+		subscriptionListener = null;
+		datastoreSink = null;
+		acceptedTopics.clear();
+		LOG.debug("Node {} closed", address);
 	}
 
 	@Override
@@ -123,97 +259,725 @@ public class IfTableEventSource implements EventSource {
 		return Collections.unmodifiableList(this.schemaPaths);
 	}
 
-	public void execute() {
-		LOG.info("Executing poll cycle for " + address + " ...");
-		MibTable<IfEntryBuilder> historyTable =
-		        new MibTable<>(snmp, address, community, port, IfEntryBuilder.class);
+	/**
+	 * The node's target. Its host is resolved by the provider, off the poll path.
+	 */
+	NodeTarget getTarget() {
+		return target;
+	}
 
-		Map<Integer, IfEntryBuilder> historyStatsBuilders = historyTable.populate();
-		LOG.info("Polled " + historyStatsBuilders.size() + " rows.");
+	/**
+	 * Set a task to run when the first topic joins this source.
+	 */
+	void setSubscriptionListener(Runnable listener) {
+		this.subscriptionListener = listener;
+	}
 
-		for (Integer index : historyStatsBuilders.keySet()) {
-			IfEntryBuilder entryBuilder = historyStatsBuilders.get(index);
-			AnyXmlNode any = encapsulate(entryBuilder);
+	boolean hasSubscribers() {
+		return !acceptedTopics.isEmpty();
+	}
 
-            final ContainerNode topicNotification = Builders.containerBuilder()
-                    .withNodeIdentifier(TOPIC_NOTIFICATION_ARG)
-                    .withChild(ImmutableNodes.leafNode(TOPIC_ID_ARG, new TopicId(address)))
-                    .withChild(ImmutableNodes.leafNode(EVENT_SOURCE_ARG, "soamcollector"))
-                    .withChild(any)
-                    .build();
+	/**
+	 * Also write the rows of each poll to the datastore under a topology
+	 * node, or stop doing so with a null sink.
+	 */
+	void setDatastoreSink(DatastoreSink sink, String topologyNodeId) {
+		this.nodeId = topologyNodeId;
+		this.datastoreSink = sink;
+	}
+
+	/*
+	 * Whether anyone takes the rows of a poll.
+	 */
+	private boolean isCollected() {
+		return hasSubscribers() || datastoreSink != null;
+	}
+
+	/**
+	 * Apply new settings of the node in place. What has been learned about
+	 * the device and the node's counter baselines and published rows are
+	 * kept, so the next poll carries on where the last one left off.
+	 *
+	 * @throws IllegalArgumentException if the new SNMPv3 settings are
+	 *         inconsistent, in which case the previous settings stay
+	 */
+	void reconfigure(SnmpAttrs params) {
+		if (target.reconfigure(portOf(params), credentialsOf(params))) {
+			LOG.info("Node {} now uses {} on port {}", address, target.getCredentials(), portOf(params));
+			// The old settings may be why the node stopped answering
+			breaker.success();
+		}
+		configure(params);
+	}
+
+	private void configure(SnmpAttrs params) {
+		fullSyncCycles = params.getFullSyncCycles() != null ? params.getFullSyncCycles() : 1;
+		batchSize = params.getNotificationBatchSize() != null ? params.getNotificationBatchSize() : 1;
+		columns = params.getColumns();
+		policy = new RequestPolicy(
+		        params.getSnmpTimeout() != null ? params.getSnmpTimeout() : DEFAULT_TIMEOUT,
+		        params.getSnmpRetries() != null ? params.getSnmpRetries().intValue() : DEFAULT_RETRIES);
+		gate.setLimit(params.getSnmpMaxRequests() != null
+		        ? params.getSnmpMaxRequests().intValue() : DEFAULT_MAX_REQUESTS);
+		boolean stack = collects(params, STACK_TABLE);
+		boolean rcvAddresses = collects(params, RCV_ADDRESS_TABLE);
+		if ((stack && !collectStack) || (rcvAddresses && !collectRcvAddresses)) {
+			// Walk a newly added table on the next poll rather than on the next config change
+			configCache.invalidate();
+		}
+		collectStack = stack;
+		collectRcvAddresses = rcvAddresses;
+	}
 
-			try {
-				publishService.putNotification(new TopicDOMNotification(topicNotification));
-			} catch (InterruptedException e) {
-				LOG.warn("Failed to put notification: " + e.getMessage());
+	private static boolean collects(SnmpAttrs params, String table) {
+		if (params.getTables() != null) {
+			for (Object name : params.getTables()) {
+				if (table.equalsIgnoreCase(String.valueOf(name))) {
+					return true;
+				}
 			}
 		}
+		return false;
+	}
+
+	private static int portOf(SnmpAttrs params) {
+		return params.getSnmpPort() != null ? params.getSnmpPort().intValue() : SNMP_PORT;
 	}
 
-    private AnyXmlNode encapsulate(IfEntryBuilder statsEntry) {
+	private static SnmpCredentials credentialsOf(SnmpAttrs params) {
+		if (SNMP_V3.equalsIgnoreCase(String.valueOf(params.getSnmpVersion()))) {
+			return SnmpCredentials.usm(params.getSnmpSecurityName(),
+			        String.valueOf(params.getSnmpAuthProtocol()), params.getSnmpAuthPassword(),
+			        String.valueOf(params.getSnmpPrivProtocol()), params.getSnmpPrivPassword());
+		}
+		return SnmpCredentials.community(params.getSnmpCommunity());
+	}
+
+	/*
+	 * SNMPv3 needs the device's engine before the first request. Discovery
+	 * blocks for a round trip, so it runs on the resolver thread rather than
+	 * on a poll worker or RPC thread. Returns null if the engine is known,
+	 * otherwise the discovery in progress, started if need be.
+	 */
+	private synchronized ListenableFuture<Void> discoverEngine() {
+		final Target resolved = target.get();
+		final SnmpCredentials credentials = target.getCredentials();
+		if (resolved == null || engines.isReady(resolved, credentials)) {
+			return null;
+		}
+		if (discovery != null) {
+			return discovery;
+		}
+		final SettableFuture<Void> started = SettableFuture.create();
+		discovery = started;
+		try {
+			resolver.execute(new Runnable() {
+
+			    @Override
+			    public void run() {
+			        try {
+			            engines.discover(snmp, resolved, credentials, policy.getTimeout(0));
+			            finishDiscovery(started, null);
+			        } catch (IOException e) {
+			            if (breaker.failure()) {
+			                LOG.warn("Node {} failed {} polls in a row, only probing it until it answers",
+			                        address, BREAKER_THRESHOLD);
+			            }
+			            LOG.warn("SNMPv3 engine discovery for {} failed: {}", address, e.getMessage());
+			            finishDiscovery(started, e);
+			        }
+			    }
+
+			});
+		} catch (RejectedExecutionException e) {
+			finishDiscovery(started, e);
+		}
+		return started;
+	}
+
+	private void finishDiscovery(SettableFuture<Void> done, Throwable e) {
+		synchronized (this) {
+			if (discovery == done) {
+				discovery = null;
+			}
+		}
+		if (e != null) {
+			done.setException(e);
+		} else {
+			done.set(null);
+		}
+	}
+
+	/*
+	 * Whether requests can go out to the node. If its engine is not known yet
+	 * discovery is started, and this poll leaves the node to the next one.
+	 */
+	private boolean isEngineReady() {
+		if (discoverEngine() == null) {
+			return true;
+		}
+		LOG.debug("Skipping poll of {} until its SNMPv3 engine is discovered", address);
+		return false;
+	}
+
+	/*
+	 * A failed request may mean the device has a new engine or the keys are
+	 * wrong; discover the engine again before the next poll.
+	 */
+	private void invalidateEngine() {
+		if (target.getCredentials().isUsm()) {
+			Target resolved = target.get();
+			if (resolved != null) {
+				engines.invalidate(resolved);
+			}
+		}
+	}
+
+	/**
+	 * Start a scheduled poll. Nodes that nobody has subscribed to and that do
+	 * not write to the datastore are not collected; they only get an
+	 * occasional sysUpTime probe. Nodes that keep
+	 * failing are not collected either until a probe gets an answer.
+	 */
+	public ListenableFuture<Void> poll() {
+		return poll(false);
+	}
+
+	/**
+	 * Start a poll on request. It collects and publishes every row, as on a
+	 * full sync, whether or not anyone takes the rows, and a node considered
+	 * unreachable is probed right away rather than at its next probe.
+	 */
+	ListenableFuture<Void> repoll() {
+		resync = true;
+		return poll(true);
+	}
+
+	private ListenableFuture<Void> poll(final boolean requested) {
+		if (closed) {
+			return requested
+			        ? Futures.<Void>immediateFailedFuture(new IllegalStateException("Node " + address + " is closed"))
+			        : Futures.<Void>immediateFuture(null);
+		}
+		if (!target.isResolved()) {
+			// Not the device's fault; the lookup runs on the resolver thread and the next poll tries again
+			LOG.debug("Skipping poll of {}, its host is not resolved yet", address);
+			return requested
+			        ? Futures.<Void>immediateFailedFuture(new IOException("Host " + address + " is not resolved yet"))
+			        : Futures.<Void>immediateFuture(null);
+		}
+		if (requested) {
+			// A requested poll waits for discovery rather than skipping
+			ListenableFuture<Void> discovering = discoverEngine();
+			if (discovering != null) {
+				return Futures.transform(discovering, new AsyncFunction<Void, Void>() {
+
+				    @Override
+				    public ListenableFuture<Void> apply(Void input) {
+				        return poll(true);
+				    }
+
+				});
+			}
+		}
+		if (breaker.isOpen()) {
+			if (!requested && !breaker.shouldProbe()) {
+				LOG.debug("Skipping poll of unreachable node {}", address);
+				return Futures.immediateFuture(null);
+			}
+			if (!isEngineReady()) {
+				return Futures.immediateFuture(null);
+			}
+			return Futures.transform(probe(), new AsyncFunction<Void, Void>() {
 
-        DocumentBuilderFactory docFactory = DocumentBuilderFactory.newInstance();
-        DocumentBuilder docBuilder;
+			    @Override
+			    public ListenableFuture<Void> apply(Void input) {
+			        LOG.info("Node {} is reachable again", address);
+			        resync = true;
+			        return requested || isCollected() ? execute() : Futures.<Void>immediateFuture(null);
+			    }
 
-        try {
-            docBuilder = docFactory.newDocumentBuilder();
-        } catch (ParserConfigurationException e) {
-            throw new IllegalStateException("Can not create XML DocumentBuilder");
+			});
+		}
+		if (requested || isCollected()) {
+			idleCycles = 0;
+			return isEngineReady() ? execute() : Futures.<Void>immediateFuture(null);
+		}
+		if (idleCycles++ % IDLE_PROBE_CYCLES != 0) {
+			return Futures.immediateFuture(null);
+		}
+		return isEngineReady() ? probe() : Futures.<Void>immediateFuture(null);
+	}
+
+	/*
+	 * A single GET-sized request for sysUpTime, without retries.
+	 */
+	private ListenableFuture<Void> probe() {
+		LOG.debug("Probing node {}", address);
+		TableWalker walker = new TableWalker(snmp, target.get(),
+		        Collections.singletonList(SYS_UPTIME), Collections.<OID>emptyList())
+		        .setPolicy(policy.withoutRetries())
+		        .setGate(gate);
+		ListenableFuture<Void> alive = Futures.transform(walker.walk(),
+		        new Function<List<List<VariableBinding>>, Void>() {
+
+		            @Override
+		            public Void apply(List<List<VariableBinding>> ignored) {
+		                LOG.debug("Node {} alive", address);
+		                return null;
+		            }
+
+		        });
+		Futures.addCallback(alive, new FutureCallback<Void>() {
+
+		    @Override
+		    public void onSuccess(Void result) {
+		        breaker.success();
+		    }
+
+		    @Override
+		    public void onFailure(Throwable e) {
+		        breaker.failure();
+		        invalidateEngine();
+		        LOG.warn("Node {} did not answer liveness probe: {}", address, e.getMessage());
+		    }
+
+		});
+		return alive;
+	}
+
+	/*
+	 * A single request for sysUpTime, ifNumber and ifTableLastChange. The
+	 * cached config columns are walked again if an interface came or went,
+	 * the agent restarted, or they have not been walked for
+	 * CONFIG_MAX_AGE_CYCLES polls.
+	 */
+	private ListenableFuture<Void> checkConfig() {
+		if (configCache.isStale()) {
+			return Futures.immediateFuture(null);
+		}
+		final TableWalker walker = new TableWalker(snmp, target.get(),
+		        Arrays.asList(SYS_UPTIME, IF_NUMBER, IF_TABLE_LAST_CHANGE), Collections.<OID>emptyList())
+		        .setPolicy(policy)
+		        .setGate(gate);
+		return Futures.transform(walker.walk(), new Function<List<List<VariableBinding>>, Void>() {
+
+		    @Override
+		    public Void apply(List<List<VariableBinding>> ignored) {
+		        List<VariableBinding> scalars = walker.getScalars();
+		        if (scalar(scalars, IF_TABLE_LAST_CHANGE) != configLastChange
+		                || scalar(scalars, IF_NUMBER) != configIfNumber
+		                || scalar(scalars, SYS_UPTIME) < configUpTime
+		                || ++configAge >= CONFIG_MAX_AGE_CYCLES) {
+		            LOG.debug("Walking config columns of {} again", address);
+		            configCache.invalidate();
+		        }
+		        return null;
+		    }
+
+		});
+	}
+
+	/*
+	 * Remember what the device reported with the walk that refreshed the
+	 * config columns, for checkConfig() to compare against.
+	 */
+	private void recordConfig(List<VariableBinding> scalars) {
+		configUpTime = scalar(scalars, SYS_UPTIME);
+		configIfNumber = scalar(scalars, IF_NUMBER);
+		configLastChange = scalar(scalars, IF_TABLE_LAST_CHANGE);
+		configAge = 0;
+	}
+
+	/**
+	 * Start a poll cycle. Each stage runs when the previous one completes, so
+	 * the calling thread returns as soon as the first request is sent.
+	 */
+	public ListenableFuture<Void> execute() {
+		LOG.debug("Executing poll cycle for {}", address);
+		// ifXTable shares the ifTable index, so its columns are walked in the same requests
+		final MibTable<IfEntryBuilder> historyTable =
+		        new MibTable<>(snmp, target.get(), IfEntryBuilder.class)
+		                .join(IfEntry1Builder.class)
+		                .select(columns)
+		                .scalar(SnmpSettings.SYS_UPTIME_OID)
+		                .scalar(IF_NUMBER.toDottedString())
+		                .scalar(IF_TABLE_LAST_CHANGE.toDottedString())
+		                .scalar(IF_STACK_LAST_CHANGE.toDottedString())
+		                .cache(configCache)
+		                .profile(profile)
+		                .policy(policy)
+		                .gate(gate);
+
+		// Without ifTableLastChange there is no telling when config columns change, so they are always walked
+		if (resync || configLastChange < 0) {
+			configCache.invalidate();
+		}
+
+		// Between full syncs only rows that changed since the last poll are published
+		final boolean fullSync = resync || cycle == 0 || (fullSyncCycles > 0 && cycle % fullSyncCycles == 0);
+		resync = false;
+		cycle++;
+
+		// Rows are encoded into payload batches as they complete so the builders are not retained
+		final Batches batches = new Batches();
+		// Whether each table was walked completely; the snapshots are only committed once the rows are published
+		final Map<RowSnapshot, Boolean> walked = new LinkedHashMap<>();
+		final boolean publish = hasSubscribers();
+		DatastoreSink sink = datastoreSink;
+		final DatastoreSink.Poll stored = sink != null ? sink.begin(nodeId) : null;
+		// Scalars of a walk that refreshes the config columns, recorded only if the walk completes
+		final List<VariableBinding> configScalars = new ArrayList<>();
+		final MibTable.RowCallback<IfEntryBuilder> callback = new MibTable.RowCallback<IfEntryBuilder>() {
+		    private long upTime = -1;
+
+		    @Override
+		    public void onRow(MibRow<IfEntryBuilder> row) {
+		        if (upTime < 0) {
+		            upTime = upTime(row.getScalars());
+		            polledStackLastChange = scalar(row.getScalars(), IF_STACK_LAST_CHANGE);
+		            if (configRefresh) {
+		                configScalars.addAll(row.getScalars());
+		            }
+		        }
+		        CounterRates.RowRates rowRates = rates.sample(row, upTime);
+		        boolean changed = snapshot.update(row.getIndex(), row.fingerprint());
+		        if (publish && (changed || fullSync)) {
+		            batches.add(ENTRY_ENCODER, row, rowRates);
+		        }
+		        if (stored != null) {
+		            stored.add(row, rowRates, changed);
+		        }
+		    }
+
+		};
+		ListenableFuture<MibTable.WalkResult> rows = Futures.transform(checkConfig(),
+		        new AsyncFunction<Void, MibTable.WalkResult>() {
+
+		            @Override
+		            public ListenableFuture<MibTable.WalkResult> apply(Void input) {
+		                configRefresh = configCache.isStale();
+		                return historyTable.walk(callback);
+		            }
+
+		        });
+
+		// The stack and receive address tables change as rarely as the config columns and are walked with them
+		ListenableFuture<Boolean> complete = Futures.transform(rows,
+		        new AsyncFunction<MibTable.WalkResult, Boolean>() {
+
+		            @Override
+		            public ListenableFuture<Boolean> apply(MibTable.WalkResult result) {
+		                walked.put(snapshot, result.isComplete());
+		                if (configRefresh && result.isComplete() && !configScalars.isEmpty()) {
+		                    recordConfig(configScalars);
+		                }
+		                LOG.debug("Polled {} rows{} of {}", result.getRows(),
+		                        result.isComplete() ? "" : " (incomplete)", address);
+		                ListenableFuture<Boolean> stackComplete = Futures.immediateFuture(result.isComplete());
+		                if (publish && collectStack && (configRefresh || polledStackLastChange != stackLastChange)) {
+		                    stackComplete = walkTable(stackComplete, STACK_TABLE,
+		                            new MibTable<>(snmp, target.get(), IfStackEntryBuilder.class)
+		                                    .index("IfStackHigherLayer", "IfStackLowerLayer"),
+		                            STACK_ENCODER, stackSnapshot, fullSync, batches, walked);
+		                }
+		                if (publish && collectRcvAddresses && configRefresh) {
+		                    return walkTable(stackComplete, RCV_ADDRESS_TABLE,
+		                            new MibTable<>(snmp, target.get(), IfRcvAddressEntryBuilder.class)
+		                                    .index("IfIndex", "IfRcvAddressAddress"),
+		                            RCV_ADDRESS_ENCODER, rcvAddressSnapshot, fullSync, batches, walked);
+		                }
+		                return stackComplete;
+		            }
+
+		        });
+
+		// Only the walks tell whether the device is healthy; publishing or encoding failures are ours
+		Futures.addCallback(complete, new FutureCallback<Boolean>() {
+
+		    @Override
+		    public void onSuccess(Boolean allComplete) {
+		        breaker.success();
+		    }
+
+		    @Override
+		    public void onFailure(Throwable e) {
+		        if (isSnmpFailure(e)) {
+		            invalidateEngine();
+		            if (breaker.failure()) {
+		                LOG.warn("Node {} failed {} polls in a row, only probing it until it answers",
+		                        address, BREAKER_THRESHOLD);
+		            }
+		        }
+		    }
+
+		});
+
+		ListenableFuture<Void> published = Futures.transform(complete,
+		        new AsyncFunction<Boolean, Void>() {
+
+		            @Override
+		            public ListenableFuture<Void> apply(Boolean allComplete) {
+		                if (closed) {
+		                    return Futures.immediateFuture(null);
+		                }
+		                List<TopicDOMNotification> notifications = batches.toNotifications(allComplete);
+		                LOG.debug("Publishing {} notifications for {}", notifications.size(), address);
+		                return publisher.publish(notifications);
+		            }
+
+		        });
+
+		Futures.addCallback(published, new FutureCallback<Void>() {
+
+		    @Override
+		    public void onSuccess(Void result) {
+		        for (Map.Entry<RowSnapshot, Boolean> table : walked.entrySet()) {
+		            table.getKey().commit(table.getValue());
+		        }
+		        boolean rowsComplete = walked.get(snapshot);
+		        rates.commit(rowsComplete);
+		        if (stored != null && !closed) {
+		            stored.commit(rowsComplete);
+		        }
+		        if (Boolean.TRUE.equals(walked.get(stackSnapshot))) {
+		            stackLastChange = polledStackLastChange;
+		        }
+		        LOG.debug("Poll cycle for {} complete", address);
+		    }
+
+		    @Override
+		    public void onFailure(Throwable e) {
+		        snapshot.abort();
+		        rates.abort();
+		        stackSnapshot.abort();
+		        rcvAddressSnapshot.abort();
+		        if (e instanceof TimeoutException) {
+		            LOG.warn(e.getMessage());
+		        } else if (isSnmpFailure(e)) {
+		            LOG.warn("SNMP error", e);
+		        } else {
+		            LOG.warn("Poll of {} failed, its rows are published again next time", address, e);
+		        }
+		    }
+
+		});
+		return published;
+	}
+
+    /**
+     * Walk an OID subtree of the node now, over its session and target and
+     * with its request settings. Walks of a subtree that start while another
+     * walk of it is in progress share that walk. The walk starts once the
+     * node's SNMPv3 engine is known.
+     *
+     * @throws IllegalArgumentException if the OID is not numeric
+     */
+    ListenableFuture<SnmpWalkOutput> walk(String oid) {
+        if (oid == null || !NUMERIC_OID.matcher(oid).matches()) {
+            throw new IllegalArgumentException("Not a numeric OID: " + oid);
         }
+        final String subtree = new OID(oid.startsWith(".") ? oid.substring(1) : oid).toDottedString();
+        return gate.share(subtree, new Supplier<ListenableFuture<SnmpWalkOutput>>() {
+
+            @Override
+            public ListenableFuture<SnmpWalkOutput> get() {
+                ListenableFuture<Void> discovering = discoverEngine();
+                if (discovering == null) {
+                    return startWalk(subtree);
+                }
+                return Futures.transform(discovering, new AsyncFunction<Void, SnmpWalkOutput>() {
+
+                    @Override
+                    public ListenableFuture<SnmpWalkOutput> apply(Void input) {
+                        return startWalk(subtree);
+                    }
+
+                });
+            }
 
-        Document doc = docBuilder.newDocument();
+        });
+    }
 
-        final Optional<String> namespace = Optional.of(PAYLOAD_ARG.getNodeType().getNamespace().toString());
-        final Element rootElement = createElement(doc , "payload", namespace);
+    /*
+     * A single-column walk, so it is sized to the device's profile and stops
+     * at endOfMibView or an OID that does not advance, like the table walks.
+     * Cells are turned into RPC results as they arrive rather than kept as
+     * bindings as well; the poll path never builds RPC results.
+     */
+    private ListenableFuture<SnmpWalkOutput> startWalk(final String subtree) {
+        final List<Results> results = new ArrayList<>();
+        final TableWalker walker = new TableWalker(snmp, target.get(), Collections.singletonList(new OID(subtree)))
+                .setListener(new TableWalker.Listener() {
+
+                    @Override
+                    public void onCell(int column, VariableBinding binding) {
+                        results.add(new ResultsBuilder()
+                                .setOid(binding.getOid().toDottedString())
+                                .setValue(binding.getVariable().toString())
+                                .build());
+                    }
+
+                    @Override
+                    public void onProgress(TableWalker source) {
+                    }
+
+                })
+                .setProfile(profile)
+                .setPolicy(policy)
+                .setGate(gate);
+        return Futures.transform(walker.walk(), new Function<List<List<VariableBinding>>, SnmpWalkOutput>() {
+
+            @Override
+            public SnmpWalkOutput apply(List<List<VariableBinding>> ignored) {
+                LOG.info("Walked {} objects of {} from {}", results.size(), subtree, address);
+                return new SnmpWalkOutputBuilder().setComplete(walker.isComplete()).setResults(results).build();
+            }
 
-        final Element sourceElement = doc.createElement("source");
-        sourceElement.appendChild(doc.createTextNode(address));
-        rootElement.appendChild(sourceElement);
+        });
+    }
 
-        final Element messageElement = doc.createElement("message");
-        messageElement.appendChild(toXml(doc, statsEntry));
-        rootElement.appendChild(messageElement);
+    /*
+     * Walk a further table once the previous walks are done, publishing its
+     * rows that changed, and tell whether all walks so far were complete.
+     * Whether this walk was complete is recorded in walked, for the snapshot
+     * to be committed once the poll is published.
+     */
+    private <R> ListenableFuture<Boolean> walkTable(ListenableFuture<Boolean> previous, final String name,
+            final MibTable<R> table, final RowEncoder<R> encoder, final RowSnapshot tableSnapshot, final boolean fullSync,
+            final Batches batches, final Map<RowSnapshot, Boolean> walked) {
+        table.profile(profile).policy(policy).gate(gate);
+        return Futures.transform(previous, new AsyncFunction<Boolean, Boolean>() {
+
+            @Override
+            public ListenableFuture<Boolean> apply(final Boolean previousComplete) {
+                ListenableFuture<MibTable.WalkResult> rows = table.walk(new MibTable.RowCallback<R>() {
+
+                    @Override
+                    public void onRow(MibRow<R> row) {
+                        if (tableSnapshot.update(row.getIndex(), row.fingerprint()) || fullSync) {
+                            batches.add(encoder, row, null);
+                        }
+                    }
+
+                });
+                return Futures.transform(rows, new Function<MibTable.WalkResult, Boolean>() {
+
+                    @Override
+                    public Boolean apply(MibTable.WalkResult result) {
+                        walked.put(tableSnapshot, result.isComplete());
+                        LOG.debug("Polled {} rows of {} from {}", result.getRows(), name, address);
+                        return previousComplete && result.isComplete();
+                    }
+
+                });
+            }
 
-        return Builders.anyXmlBuilder().withNodeIdentifier(PAYLOAD_ARG)
-                     .withValue(new DOMSource(rootElement))
-                     .build();
+        });
     }
 
-    private Element toXml(Document doc, IfEntryBuilder entry) {
-    	final Element container = doc.createElement(entry.getClass().getSimpleName());
-
-    	for (Method method : entry.getClass().getMethods()) {
-    	    OID oid = method.getAnnotation(OID.class);
-    	    String name = method.getName();
-    		if (oid != null && name.startsWith("get")) {
-    			try {
-        			name = name.substring(3);
-					final Element item = doc.createElement(name);
-					final Object data = method.invoke(entry);
-					if (data != null) {
-					    item.appendChild(doc.createTextNode(getValue(data)));
-					    container.appendChild(item);
-					}
-				} catch (Throwable e) {
-					LOG.warn("Failed to add message data", e);
-				}
-    		}
-    	}
+    /*
+     * Whether a poll failed because of the device: a request timed out, was
+     * rejected with a REPORT or could not be sent.
+     */
+    private static boolean isSnmpFailure(Throwable e) {
+        return e instanceof TimeoutException || e instanceof IOException;
+    }
 
-    	return container;
+    /*
+     * sysUpTime of the device in timeticks, or the local monotonic clock in
+     * the same unit if the device did not return it.
+     */
+    private static long upTime(List<VariableBinding> scalars) {
+        long upTime = scalar(scalars, SYS_UPTIME);
+        return upTime >= 0 ? upTime : System.nanoTime() / 10000000L;
     }
 
     /*
-     * Many of the SNMP4J value types have a getValue() method and an
-     * overridden toString() that includes the type name.
+     * The value of a scalar fetched with a walk, or -1 if the device did not
+     * return it.
      */
-    private String getValue(Object data) {
-        try {
-            Method method = data.getClass().getMethod("getValue");
-            data = method.invoke(data);
-        } catch (Throwable t) {
+    private static long scalar(List<VariableBinding> scalars, OID oid) {
+        for (VariableBinding binding : scalars) {
+            if (binding.getOid().startsWith(oid) && !binding.isException()) {
+                return binding.getVariable().toLong();
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * The payloads of a poll, each filled up to the batch size.
+     */
+    private class Batches {
+        private final List<Payload> payloads = new ArrayList<>();
+        private Payload payload;
+
+        <R> void add(RowEncoder<R> encoder, MibRow<R> row, CounterRates.RowRates rowRates) {
+            if (payload == null || (batchSize > 0 && payload.rows >= batchSize)) {
+                payload = new Payload();
+                payloads.add(payload);
+            }
+            payload.add(encoder, row, rowRates);
+        }
+
+        List<TopicDOMNotification> toNotifications(boolean complete) {
+            List<TopicDOMNotification> notifications = new ArrayList<>(payloads.size());
+            for (Payload batch : payloads) {
+                notifications.add(batch.toNotification(complete));
+            }
+            return notifications;
+        }
+    }
+
+    /*
+     * A notification payload carrying one or more rows of a poll:
+     * payload/source and payload/message with one element per row, and
+     * payload/complete set to false when the walk ended early.
+     */
+    private class Payload {
+        private final Document doc;
+        private final Element rootElement;
+        private final Element messageElement;
+        private int rows;
+
+        Payload() {
+            doc = RowEncoder.newDocument();
+
+            rootElement = createElement(doc , "payload", PAYLOAD_NAMESPACE);
+
+            final Element sourceElement = doc.createElement("source");
+            sourceElement.appendChild(doc.createTextNode(address));
+            rootElement.appendChild(sourceElement);
+
+            messageElement = doc.createElement("message");
+            rootElement.appendChild(messageElement);
+        }
+
+        <R> void add(RowEncoder<R> encoder, MibRow<R> row, CounterRates.RowRates rowRates) {
+            messageElement.appendChild(encoder.encode(doc, row, rowRates));
+            rows++;
+        }
+
+        TopicDOMNotification toNotification(boolean complete) {
+            if (!complete) {
+                final Element completeElement = doc.createElement("complete");
+                completeElement.appendChild(doc.createTextNode("false"));
+                rootElement.insertBefore(completeElement, messageElement);
+            }
+            AnyXmlNode any = Builders.anyXmlBuilder().withNodeIdentifier(PAYLOAD_ARG)
+                    .withValue(new DOMSource(rootElement))
+                    .build();
+
+            final ContainerNode topicNotification = Builders.containerBuilder()
+                    .withNodeIdentifier(TOPIC_NOTIFICATION_ARG)
+                    .withChild(ImmutableNodes.leafNode(TOPIC_ID_ARG, new TopicId(address)))
+                    .withChild(ImmutableNodes.leafNode(EVENT_SOURCE_ARG, "soamcollector"))
+                    .withChild(any)
+                    .build();
+
+            return new TopicDOMNotification(topicNotification);
         }
-        return data.toString();
     }
 
     // Helper to create root XML element with correct namespace and attribute
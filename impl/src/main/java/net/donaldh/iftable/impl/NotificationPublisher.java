@@ -0,0 +1,104 @@
+/*
+ * Copyright © 2016 Cisco Systems Inc and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package net.donaldh.iftable.impl;
+
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.opendaylight.controller.md.sal.dom.api.DOMNotification;
+import org.opendaylight.controller.md.sal.dom.api.DOMNotificationPublishService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Publishes notifications without blocking the calling thread. When the
+ * notification router rejects an offer because its queues are full, the
+ * remaining notifications are offered again after an increasing delay, and
+ * the returned future only completes once the router has delivered the last
+ * accepted notification, so a node is not polled again before its previous
+ * results have drained. The future fails if notifications had to be dropped
+ * or could not be delivered, so that the caller publishes those rows again.
+ */
+public class NotificationPublisher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(NotificationPublisher.class);
+
+    static final int MAX_ATTEMPTS = 8;
+    static final long RETRY_DELAY_MILLIS = 50;
+
+    private final DOMNotificationPublishService publishService;
+    private final ScheduledExecutorService retryExecutor;
+
+    public NotificationPublisher(DOMNotificationPublishService publishService,
+            ScheduledExecutorService retryExecutor) {
+        this.publishService = publishService;
+        this.retryExecutor = retryExecutor;
+    }
+
+    public ListenableFuture<Void> publish(List<? extends DOMNotification> notifications) {
+        SettableFuture<Void> done = SettableFuture.create();
+        offer(notifications, 0, 0, null, done);
+        return done;
+    }
+
+    private void offer(final List<? extends DOMNotification> notifications, final int from, final int attempt,
+            ListenableFuture<?> lastAccepted, final SettableFuture<Void> done) {
+        for (int i = from; i < notifications.size(); i++) {
+            ListenableFuture<?> accepted = publishService.offerNotification(notifications.get(i));
+            if (accepted == DOMNotificationPublishService.REJECTED) {
+                if (attempt >= MAX_ATTEMPTS) {
+                    LOG.warn("Notification queue full, dropped {} notifications", notifications.size() - i);
+                    done.setException(new RejectedExecutionException("Notification queue full, dropped "
+                            + (notifications.size() - i) + " of " + notifications.size() + " notifications"));
+                    return;
+                }
+                final int next = i;
+                final ListenableFuture<?> previous = lastAccepted;
+                retryExecutor.schedule(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        offer(notifications, next, attempt + 1, previous, done);
+                    }
+
+                }, RETRY_DELAY_MILLIS << attempt, TimeUnit.MILLISECONDS);
+                return;
+            }
+            lastAccepted = accepted;
+        }
+        completeAfter(lastAccepted, done);
+    }
+
+    private static void completeAfter(ListenableFuture<?> lastAccepted, final SettableFuture<Void> done) {
+        if (lastAccepted == null) {
+            done.set(null);
+            return;
+        }
+        Futures.addCallback(lastAccepted, new FutureCallback<Object>() {
+
+            @Override
+            public void onSuccess(Object result) {
+                done.set(null);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                LOG.warn("Notification delivery failed", t);
+                done.setException(t);
+            }
+
+        });
+    }
+}
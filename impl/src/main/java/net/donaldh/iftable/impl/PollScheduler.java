@@ -0,0 +1,273 @@
+/*
+ * Copyright © 2016 Cisco Systems Inc and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package net.donaldh.iftable.impl;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Runs a periodic poll for each node on its own timer. The first poll of a
+ * node is delayed by a random phase within its interval so that nodes added
+ * together do not poll together. Polls are started on a bounded worker pool
+ * and a node is never polled again until the future returned by its previous
+ * poll has completed. This also holds for polls run on demand.
+ */
+public class PollScheduler implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PollScheduler.class);
+
+    private final ScheduledExecutorService timer;
+    private final ThreadPoolExecutor workers;
+    private final Random random = new Random();
+    private final Map<String, NodeTask> tasks = new ConcurrentHashMap<>();
+    // In-flight guards of cancelled nodes whose poll has not finished yet, for a node added again to wait on
+    private final Map<String, AtomicReference<SettableFuture<Void>>> draining = new ConcurrentHashMap<>();
+
+    /**
+     * A single poll of a node. Implementations must not block; the poll is
+     * considered finished when the returned future completes.
+     */
+    public interface Poll {
+        ListenableFuture<?> start();
+    }
+
+    public PollScheduler(int workerThreads, int queueSize) {
+        timer = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("if-table-timer").setDaemon(true).build());
+        workers = new ThreadPoolExecutor(workerThreads, workerThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize),
+                new ThreadFactoryBuilder().setNameFormat("if-table-poller-%d").setDaemon(true).build());
+        workers.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Start polling a node, replacing any schedule already held for the same id.
+     * A poll of the node still in progress under the old schedule, or from
+     * before the node was cancelled, holds off the first one of the new.
+     *
+     * @param id node identifier
+     * @param poll the poll to run for the node
+     * @param intervalSeconds polling interval in seconds
+     */
+    public synchronized void schedule(String id, Poll poll, long intervalSeconds) {
+        NodeTask previous = tasks.get(id);
+        AtomicReference<SettableFuture<Void>> current = previous != null ? previous.current : draining.remove(id);
+        if (current == null) {
+            current = new AtomicReference<>();
+        }
+        NodeTask task = new NodeTask(id, poll, current);
+        if (previous != null) {
+            previous.cancel();
+        }
+        start(task, intervalSeconds);
+        tasks.put(id, task);
+    }
+
+    /**
+     * Change the polling interval of a node. Other nodes are not touched,
+     * and a poll of this node in progress still holds off the next one.
+     */
+    public void reschedule(String id, long intervalSeconds) {
+        NodeTask task = tasks.get(id);
+        if (task != null) {
+            task.cancel();
+            start(task, intervalSeconds);
+        }
+    }
+
+    private void start(NodeTask task, long intervalSeconds) {
+        long intervalMillis = TimeUnit.SECONDS.toMillis(Math.max(1, intervalSeconds));
+        long phase = (long) (random.nextDouble() * intervalMillis);
+
+        task.future = timer.scheduleAtFixedRate(task, phase, intervalMillis, TimeUnit.MILLISECONDS);
+        LOG.debug("Scheduled {} every {}ms, first poll in {}ms", task.id, intervalMillis, phase);
+    }
+
+    /**
+     * Executor for short non-blocking follow-up work such as delayed retries.
+     */
+    public ScheduledExecutorService getTimer() {
+        return timer;
+    }
+
+    /**
+     * Poll a node now, unless it is already being polled. Unlike a scheduled
+     * poll that finds the previous one still running, that is expected and
+     * not worth a warning.
+     */
+    public void trigger(String id) {
+        NodeTask task = tasks.get(id);
+        if (task != null && task.begin(task.poll) == null) {
+            LOG.debug("Not triggering poll of {}, a poll is in progress", id);
+        }
+    }
+
+    /**
+     * Run a poll of a node now in place of its scheduled one, or wait for the
+     * poll of the node already in progress.
+     *
+     * @return a future that completes when the poll is done, or null if the
+     *         node is not scheduled
+     */
+    public ListenableFuture<Void> pollNow(String id, Poll poll) {
+        NodeTask task = tasks.get(id);
+        if (task == null) {
+            return null;
+        }
+        while (true) {
+            ListenableFuture<Void> started = task.begin(poll);
+            if (started != null) {
+                return started;
+            }
+            ListenableFuture<Void> running = task.current.get();
+            if (running != null) {
+                return running;
+            }
+        }
+    }
+
+    /**
+     * Stop polling a node. A poll of it in progress runs to completion, and
+     * until it does it holds off the first poll of the node if it is
+     * scheduled again.
+     */
+    public synchronized void cancel(final String id) {
+        NodeTask task = tasks.remove(id);
+        if (task == null) {
+            return;
+        }
+        task.cancel();
+        final AtomicReference<SettableFuture<Void>> current = task.current;
+        SettableFuture<Void> running = current.get();
+        if (running != null) {
+            draining.put(id, current);
+            running.addListener(new Runnable() {
+
+                @Override
+                public void run() {
+                    draining.remove(id, current);
+                }
+
+            }, MoreExecutors.directExecutor());
+        }
+    }
+
+    @Override
+    public void close() {
+        timer.shutdownNow();
+        workers.shutdownNow();
+        tasks.clear();
+        draining.clear();
+    }
+
+    private class NodeTask implements Runnable {
+        private final String id;
+        private final Poll poll;
+        // Completes when the poll in progress is done; null while the node is idle.
+        // Shared with the task this one replaced, if any.
+        private final AtomicReference<SettableFuture<Void>> current;
+        private volatile ScheduledFuture<?> future;
+
+        NodeTask(String id, Poll poll, AtomicReference<SettableFuture<Void>> current) {
+            this.id = id;
+            this.poll = poll;
+            this.current = current;
+        }
+
+        /*
+         * Runs on the timer thread; hands the poll to the worker pool unless
+         * the previous poll of this node has not finished yet.
+         */
+        @Override
+        public void run() {
+            if (begin(poll) == null) {
+                LOG.warn("Skipping poll of {}, previous poll still running", id);
+            }
+        }
+
+        /*
+         * Start a poll of the node on the worker pool, or return null if a
+         * poll of it is still in progress.
+         */
+        ListenableFuture<Void> begin(final Poll nextPoll) {
+            final SettableFuture<Void> done = SettableFuture.create();
+            if (!current.compareAndSet(null, done)) {
+                return null;
+            }
+            try {
+                workers.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        ListenableFuture<?> result;
+                        try {
+                            result = nextPoll.start();
+                        } catch (Throwable e) {
+                            LOG.error("Poll of {} failed", id, e);
+                            finish(done, e);
+                            return;
+                        }
+                        Futures.addCallback(result, new FutureCallback<Object>() {
+
+                            @Override
+                            public void onSuccess(Object ignored) {
+                                finish(done, null);
+                            }
+
+                            @Override
+                            public void onFailure(Throwable e) {
+                                finish(done, e);
+                            }
+
+                        });
+                    }
+
+                });
+            } catch (RejectedExecutionException e) {
+                LOG.warn("Skipping poll of {}, worker pool is saturated", id);
+                finish(done, e);
+            }
+            return done;
+        }
+
+        private void finish(SettableFuture<Void> done, Throwable e) {
+            current.compareAndSet(done, null);
+            if (e != null) {
+                done.setException(e);
+            } else {
+                done.set(null);
+            }
+        }
+
+        void cancel() {
+            ScheduledFuture<?> f = future;
+            if (f != null) {
+                f.cancel(false);
+            }
+        }
+    }
+}
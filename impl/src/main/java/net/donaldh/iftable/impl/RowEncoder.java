@@ -0,0 +1,88 @@
+/*
+ * Copyright © 2016 Cisco Systems Inc and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package net.donaldh.iftable.impl;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import net.donaldh.snmp.MibColumn;
+import net.donaldh.snmp.MibRow;
+
+/**
+ * Encodes table rows as XML elements using the column table of the row
+ * class, so no reflection happens per row. The message bus payload is an
+ * anyxml node, which in this release has to be backed by a DOM tree, so rows
+ * are still written as DOM elements; the expensive factory lookup and
+ * document builder creation are done once per thread. Columns of joined
+ * tables are written alongside the row's own columns, and the rate of each
+ * counter column, when known, follows it as an element with a Rate suffix.
+ */
+final class RowEncoder<T> {
+
+    private static final ThreadLocal<DocumentBuilder> DOCUMENT_BUILDER = new ThreadLocal<DocumentBuilder>() {
+        @Override
+        protected DocumentBuilder initialValue() {
+            try {
+                return DocumentBuilderFactory.newInstance().newDocumentBuilder();
+            } catch (ParserConfigurationException e) {
+                throw new IllegalStateException("Can not create XML DocumentBuilder");
+            }
+        }
+    };
+
+    private final String elementName;
+
+    RowEncoder(Class<T> builderClass) {
+        this.elementName = builderClass.getSimpleName();
+    }
+
+    /**
+     * A new empty document from this thread's cached builder.
+     */
+    static Document newDocument() {
+        return DOCUMENT_BUILDER.get().newDocument();
+    }
+
+    Element encode(final Document doc, MibRow<T> row, final CounterRates.RowRates rates) {
+        final Element container = doc.createElement(elementName);
+        row.forEachValue(new MibRow.ValueVisitor() {
+
+            @Override
+            public void visit(MibColumn column, Object value) {
+                final Element item = doc.createElement(column.getName());
+                item.appendChild(doc.createTextNode(column.format(value)));
+                container.appendChild(item);
+                if (rates != null) {
+                    double rate = rates.get(column);
+                    if (!Double.isNaN(rate)) {
+                        final Element rateItem = doc.createElement(column.getName() + "Rate");
+                        rateItem.appendChild(doc.createTextNode(formatRate(rate)));
+                        container.appendChild(rateItem);
+                    }
+                }
+            }
+
+        });
+        return container;
+    }
+
+    /*
+     * Plain decimal text; Double.toString() switches to exponent notation
+     * at the rates of busy interfaces.
+     */
+    private static String formatRate(double rate) {
+        return new BigDecimal(rate).setScale(3, RoundingMode.HALF_UP).stripTrailingZeros().toPlainString();
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright © 2016 Cisco Systems Inc and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package net.donaldh.iftable.impl;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.donaldh.snmp.RowIndex;
+
+/**
+ * Fingerprints of the rows seen in the last completed poll of a table, keyed
+ * by row index. Indexes that pack exactly into a long ({@link RowIndex#pack()})
+ * are kept in primitive arrays; longer ones, such as those of
+ * ifRcvAddressTable, are kept by the index itself, since two rows sharing a
+ * hash would hide each other's changes. Rows seen in the poll in progress are
+ * recorded separately and only replace the previous poll on {@link #commit(boolean)},
+ * so rows that disappear from the device are forgotten and a failed poll
+ * leaves the previous state untouched.
+ */
+final class RowSnapshot {
+
+    private LongLongMap previous = new LongLongMap();
+    private LongLongMap current = new LongLongMap();
+    private Map<RowIndex, Long> previousWide = new HashMap<>();
+    private Map<RowIndex, Long> currentWide = new HashMap<>();
+
+    /**
+     * Record a row of the poll in progress.
+     *
+     * @return true if the row is new or differs from the last completed poll
+     */
+    boolean update(RowIndex index, long fingerprint) {
+        if (index.isPackExact()) {
+            long key = index.pack();
+            current.put(key, fingerprint);
+            return !previous.contains(key, fingerprint);
+        }
+        currentWide.put(index, fingerprint);
+        Long last = previousWide.get(index);
+        return last == null || last != fingerprint;
+    }
+
+    /**
+     * The poll in progress completed; it becomes the baseline for the next.
+     *
+     * @param complete false if the poll ended early, in which case rows it did
+     *        not reach keep their previous fingerprint instead of being forgotten
+     */
+    void commit(boolean complete) {
+        if (!complete) {
+            current.putAbsent(previous);
+            for (Map.Entry<RowIndex, Long> row : previousWide.entrySet()) {
+                currentWide.putIfAbsent(row.getKey(), row.getValue());
+            }
+        }
+        LongLongMap swap = previous;
+        previous = current;
+        current = swap;
+        current.clear();
+        Map<RowIndex, Long> swapWide = previousWide;
+        previousWide = currentWide;
+        currentWide = swapWide;
+        currentWide.clear();
+    }
+
+    /**
+     * The poll in progress failed; forget what it recorded.
+     */
+    void abort() {
+        current.clear();
+        currentWide.clear();
+    }
+
+    /*
+     * Open addressing long to long map with linear probing.
+     */
+    private static final class LongLongMap {
+        private long[] keys = new long[64];
+        private long[] values = new long[64];
+        private boolean[] used = new boolean[64];
+        private int size;
+
+        private int find(long key) {
+            int mask = keys.length - 1;
+            for (int i = mix(key) & mask; used[i]; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        void putAbsent(LongLongMap other) {
+            for (int i = 0; i < other.keys.length; i++) {
+                if (other.used[i] && find(other.keys[i]) < 0) {
+                    put(other.keys[i], other.values[i]);
+                }
+            }
+        }
+
+        boolean contains(long key, long value) {
+            int i = find(key);
+            return i >= 0 && values[i] == value;
+        }
+
+        void put(long key, long value) {
+            if ((size + 1) * 2 > keys.length) {
+                grow();
+            }
+            int mask = keys.length - 1;
+            int i = mix(key) & mask;
+            while (used[i]) {
+                if (keys[i] == key) {
+                    values[i] = value;
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            used[i] = true;
+            keys[i] = key;
+            values[i] = value;
+            size++;
+        }
+
+        void clear() {
+            Arrays.fill(used, false);
+            size = 0;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            long[] oldValues = values;
+            boolean[] oldUsed = used;
+            keys = new long[oldKeys.length * 2];
+            values = new long[oldValues.length * 2];
+            used = new boolean[oldUsed.length * 2];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldUsed[i]) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+
+        private static int mix(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+}
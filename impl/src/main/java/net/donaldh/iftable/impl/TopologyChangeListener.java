@@ -4,7 +4,7 @@ import org.opendaylight.controller.md.sal.binding.api.DataBroker;
 import org.opendaylight.controller.md.sal.binding.api.DataTreeIdentifier;
 import org.opendaylight.controller.md.sal.binding.api.DataTreeModification;
 import org.opendaylight.controller.md.sal.common.api.data.LogicalDatastoreType;
-import org.opendaylight.yang.gen.v1.urn.net.donaldh._if.table.collector.rev170222.SnmpAttrs;
+import org.opendaylight.yang.gen.v1.urn.net.donaldh._if.table.collector.rev261018.SnmpAttrs;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.netconf.node.topology.rev150114.NetconfNode;
 import org.opendaylight.yang.gen.v1.urn.tbd.params.xml.ns.yang.network.topology.rev131021.NetworkTopology;
 import org.opendaylight.yang.gen.v1.urn.tbd.params.xml.ns.yang.network.topology.rev131021.TopologyId;
@@ -51,16 +51,9 @@ public class TopologyChangeListener extends OurDataTreeChangeListener<Node> {
         String name = node.getKey().getNodeId().getValue();
         LOG.info("Node added to topology-netconf - " + name);
 
-        NetconfNode netconfAugment = node.getAugmentation(NetconfNode.class);
-        SnmpAttrs params = node.getAugmentation(SnmpAttrs.class);
-        if (params != null
-                && params.getPollInterval() != null
-                && params.getSnmpCommunity() != null) {
-            provider.addNode(name,
-                    new String(netconfAugment.getHost().getValue()),
-                    params.getSnmpCommunity(),
-                    params.getSnmpPort().intValue(),
-                    params.getPollInterval());
+        SnmpAttrs params = collectedParams(node);
+        if (params != null) {
+            provider.addNode(name, hostOf(node), params);
         }
     }
 
@@ -72,10 +65,54 @@ public class TopologyChangeListener extends OurDataTreeChangeListener<Node> {
         LOG.info("Node removed from topology-netconf - " + name);
     }
 
+    /*
+     * Only nodes whose collection settings or host changed are touched, so a
+     * bulk edit of the topology does not disturb the rest of the fleet.
+     */
     @Override
     public void update(DataTreeModification<Node> modifiedDataObject) {
-        LOG.info("Node modified in topology-netconf - "
-                + modifiedDataObject.getRootNode().getDataAfter().getKey().getNodeId().getValue());
+        Node before = modifiedDataObject.getRootNode().getDataBefore();
+        Node after = modifiedDataObject.getRootNode().getDataAfter();
+        String name = after.getKey().getNodeId().getValue();
+
+        SnmpAttrs paramsBefore = collectedParams(before);
+        SnmpAttrs paramsAfter = collectedParams(after);
+        if (paramsAfter == null) {
+            if (paramsBefore != null) {
+                provider.removeNode(name);
+                LOG.info("Node no longer collected in topology-netconf - " + name);
+            }
+            return;
+        }
+        if (paramsBefore == null) {
+            provider.addNode(name, hostOf(after), paramsAfter);
+            LOG.info("Node now collected in topology-netconf - " + name);
+            return;
+        }
+        if (paramsBefore.equals(paramsAfter) && hostOf(before).equals(hostOf(after))) {
+            LOG.debug("Node modified in topology-netconf, collection unchanged - {}", name);
+            return;
+        }
+        provider.updateNode(name, hostOf(after), paramsAfter);
+        LOG.info("Node modified in topology-netconf - " + name);
+    }
+
+    /*
+     * The node's collection settings, or null if it is not to be collected.
+     */
+    private static SnmpAttrs collectedParams(Node node) {
+        SnmpAttrs params = node.getAugmentation(SnmpAttrs.class);
+        if (params != null
+                && params.getPollInterval() != null
+                && (params.getSnmpCommunity() != null || params.getSnmpSecurityName() != null)
+                && node.getAugmentation(NetconfNode.class) != null) {
+            return params;
+        }
+        return null;
+    }
+
+    private static String hostOf(Node node) {
+        return new String(node.getAugmentation(NetconfNode.class).getHost().getValue());
     }
 
 
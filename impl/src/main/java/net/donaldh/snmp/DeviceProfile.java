@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2014, 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package net.donaldh.snmp;
+
+/**
+ * What has been learned about the GETBULK responses a device can handle: the
+ * number of varbinds it returns in one response and their average encoded
+ * size, from which each request's max-repetitions is derived.
+ *
+ * <p>The varbind limit doubles after each complete response until a request
+ * fails with tooBig. The failing size then becomes a ceiling, the limit is
+ * halved and afterwards only grows by a quarter at a time, below the
+ * ceiling. Only complete responses to requests near the limit count
+ * towards growth. The ceiling itself is relaxed after a run of successes, so a
+ * device that is upgraded is eventually asked for more. An agent that returns
+ * fewer varbinds than asked without ending the walk has told us its limit.
+ */
+public class DeviceProfile {
+
+    static final int INITIAL_CELLS = 256;
+    static final int MIN_VARBIND_SIZE = 8;
+
+    // Successes after which the ceiling is raised to probe for a larger limit again
+    static final int CEILING_PROBE_SUCCESSES = 32;
+
+    private int cells;
+    private int ceiling;
+    private int varbindSize;
+    private int successes;
+
+    public DeviceProfile() {
+        this(INITIAL_CELLS, Integer.MAX_VALUE, SnmpSettings.VARBIND_SIZE);
+    }
+
+    DeviceProfile(int cells, int ceiling, int varbindSize) {
+        this.cells = Math.max(1, cells);
+        this.ceiling = Math.max(2, ceiling);
+        this.varbindSize = Math.max(MIN_VARBIND_SIZE, varbindSize);
+    }
+
+    /**
+     * The max-repetitions for a GETBULK so that its response stays within
+     * what the device handles and within a single UDP datagram.
+     */
+    public synchronized int maxRepetitions(int nonRepeaters, int repeaters) {
+        int width = Math.max(1, repeaters);
+        int budget = SnmpSettings.MAX_PDU_SIZE - SnmpSettings.PDU_OVERHEAD - nonRepeaters * varbindSize;
+        int repetitions = Math.min(budget / (width * varbindSize), cells / width);
+        return Math.max(1, Math.min(SnmpSettings.MAXREPETITIONS, repetitions));
+    }
+
+    /**
+     * A response arrived.
+     *
+     * @param requested varbinds asked for by the repeaters of the request
+     * @param returned varbinds returned for the repeaters
+     * @param bytes encoded size of the response
+     * @param truncated whether the agent returned fewer varbinds than asked
+     *        while the walk still had further to go
+     */
+    public synchronized void success(int requested, int returned, int bytes, boolean truncated) {
+        if (returned > 0 && bytes > 0) {
+            // moving average, weighted towards what has been seen before
+            varbindSize = Math.max(MIN_VARBIND_SIZE, (varbindSize * 3 + bytes / returned) / 4);
+        }
+        if (truncated) {
+            cells = Math.max(1, Math.min(cells, returned));
+            ceiling = Math.min(ceiling, cells + 1);
+        } else if (returned >= requested && requested * 2 > cells) {
+            int grown = ceiling == Integer.MAX_VALUE ? cells * 2 : cells + cells / 4 + 1;
+            cells = Math.max(cells, Math.min(grown, ceiling - 1));
+        }
+        if (++successes >= CEILING_PROBE_SUCCESSES && ceiling != Integer.MAX_VALUE) {
+            ceiling += ceiling / 4 + 1;
+            successes = 0;
+        }
+    }
+
+    /**
+     * A request failed with tooBig. Timeouts are not reported here: a device
+     * that is down or dropping packets says nothing about its response size.
+     *
+     * @param requested varbinds asked for by the repeaters of the request
+     */
+    public synchronized void failure(int requested) {
+        ceiling = Math.max(2, Math.min(ceiling, requested));
+        cells = Math.max(1, Math.min(cells, requested / 2));
+        successes = 0;
+    }
+
+    public synchronized int getCells() {
+        return cells;
+    }
+
+    /**
+     * Persistent form, as read by {@link #parse(String)}.
+     */
+    @Override
+    public synchronized String toString() {
+        return cells + "," + ceiling + "," + varbindSize;
+    }
+
+    /**
+     * @return the profile, or null if the text is not one
+     */
+    public static DeviceProfile parse(String text) {
+        String[] fields = text.trim().split(",");
+        if (fields.length != 3) {
+            return null;
+        }
+        try {
+            return new DeviceProfile(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]),
+                    Integer.parseInt(fields[2]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2014, 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package net.donaldh.snmp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link DeviceProfile} of every device by address, kept in a properties
+ * file so that what was learned survives a restart.
+ */
+public class DeviceProfiles {
+    private static final Logger LOG = LoggerFactory.getLogger(DeviceProfiles.class);
+
+    private final File file;
+    private final Map<String, DeviceProfile> profiles = new ConcurrentHashMap<>();
+
+    /**
+     * @param file where profiles are kept, or null to not keep them
+     */
+    public DeviceProfiles(File file) {
+        this.file = file;
+        load();
+    }
+
+    public DeviceProfile get(String address) {
+        DeviceProfile profile = profiles.get(address);
+        if (profile == null) {
+            DeviceProfile created = new DeviceProfile();
+            profile = profiles.putIfAbsent(address, created);
+            if (profile == null) {
+                profile = created;
+            }
+        }
+        return profile;
+    }
+
+    private void load() {
+        if (file == null || !file.isFile()) {
+            return;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        } catch (IOException e) {
+            LOG.warn("Failed to read device profiles from {}", file, e);
+            return;
+        }
+        for (String address : properties.stringPropertyNames()) {
+            DeviceProfile profile = DeviceProfile.parse(properties.getProperty(address));
+            if (profile != null) {
+                profiles.put(address, profile);
+            } else {
+                LOG.debug("Ignoring device profile for {}", address);
+            }
+        }
+        LOG.info("Loaded {} device profiles from {}", profiles.size(), file);
+    }
+
+    /**
+     * Write all profiles out, replacing the file only once it is complete.
+     */
+    public void save() {
+        if (file == null) {
+            return;
+        }
+        Properties properties = new Properties();
+        for (Map.Entry<String, DeviceProfile> entry : profiles.entrySet()) {
+            properties.setProperty(entry.getKey(), entry.getValue().toString());
+        }
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            LOG.warn("Failed to create {}", parent);
+            return;
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(temp)) {
+            properties.store(out, "SNMP device profiles: cells,ceiling,varbind-size");
+        } catch (IOException e) {
+            LOG.warn("Failed to write device profiles to {}", temp, e);
+            return;
+        }
+        if (!temp.renameTo(file)) {
+            LOG.warn("Failed to replace {}", file);
+        }
+    }
+}
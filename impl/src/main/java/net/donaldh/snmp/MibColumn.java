@@ -0,0 +1,351 @@
+/*
+ * Copyright (c) 2014, 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package net.donaldh.snmp;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.opendaylight.yang.gen.v1.urn.ietf.params.xml.ns.yang.ieee.types.rev080522.MacAddress;
+import org.opendaylight.yang.gen.v1.urn.ietf.params.xml.ns.yang.ietf.inet.types.rev130715.Ipv4Address;
+import org.opendaylight.yang.gen.v1.urn.ietf.params.xml.ns.yang.ietf.yang.types.rev130715.Counter32;
+import org.opendaylight.yang.gen.v1.urn.ietf.params.xml.ns.yang.ietf.yang.types.rev130715.Counter64;
+import org.opendaylight.yang.gen.v1.urn.ietf.params.xml.ns.yang.ietf.yang.types.rev130715.Gauge32;
+import org.opendaylight.yang.gen.v1.urn.ietf.params.xml.ns.yang.ietf.yang.types.rev130715.PhysAddress;
+import org.opendaylight.yang.gen.v1.urn.ietf.params.xml.ns.yang.ietf.yang.types.rev130715.Timestamp;
+import org.opendaylight.yang.gen.v1.urn.ietf.params.xml.ns.yang.ietf.yang.types.rev130715.Timeticks;
+import org.opendaylight.yang.gen.v1.urn.ietf.params.xml.ns.yang.smiv2._if.mib.rev000614.InterfaceIndex;
+import org.opendaylight.yang.gen.v1.urn.ietf.params.xml.ns.yang.smiv2._if.mib.rev000614.InterfaceIndexOrZero;
+import org.opendaylight.yang.gen.v1.urn.ietf.params.xml.ns.yang.smiv2.inet.address.mib.rev050204.InetAddress;
+import org.opendaylight.yang.gen.v1.urn.ietf.params.xml.ns.yang.smiv2.snmpv2.tc.rev990401.DisplayString;
+import org.snmp4j.smi.IpAddress;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.UnsignedInteger32;
+import org.snmp4j.smi.Variable;
+
+/**
+ * One column of a MIB table: its base OID, the decoder for its SNMP values
+ * and the builder setter it feeds. Everything here is resolved once when the
+ * column is created so that applying a value needs no reflection.
+ */
+public final class MibColumn {
+
+    private static final BigInteger TWO_TO_64 = BigInteger.ONE.shiftLeft(64);
+    private static final MethodType SETTER_TYPE = MethodType.methodType(Object.class, Object.class, Object.class);
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+
+    /**
+     * Converts an SNMP value to the type expected by a builder setter.
+     */
+    public interface Decoder {
+        Object decode(Variable variable);
+    }
+
+    private final String name;
+    private final Class<?> type;
+    private final OID baseOID;
+    private final Decoder decoder;
+    private final MethodHandle setter;
+    private final MethodHandle getter;
+    private final MethodHandle valueOf;
+
+    MibColumn(Method setMethod, String oid) throws IllegalAccessException {
+        this.name = setMethod.getName().substring(3);
+        this.type = setMethod.getParameterTypes()[0];
+        this.baseOID = new OID(oid);
+        this.decoder = decoderFor(setMethod.getParameterTypes()[0]);
+        this.setter = MethodHandles.publicLookup().unreflect(setMethod).asType(SETTER_TYPE);
+        this.getter = findGetter(setMethod.getDeclaringClass(), name);
+        this.valueOf = findValueOf(setMethod.getParameterTypes()[0]);
+    }
+
+    /*
+     * Generated typedef classes wrap their value and have a toString() that
+     * includes the type name, so text is taken from getValue() when present.
+     */
+    private static MethodHandle findValueOf(Class<?> objectType) throws IllegalAccessException {
+        try {
+            Method method = objectType.getMethod("getValue");
+            return MethodHandles.publicLookup().unreflect(method).asType(GETTER_TYPE);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static MethodHandle findGetter(Class<?> builderClass, String name) throws IllegalAccessException {
+        for (String prefix : new String[] { "get", "is" }) {
+            try {
+                Method method = builderClass.getMethod(prefix + name);
+                return MethodHandles.publicLookup().unreflect(method).asType(GETTER_TYPE);
+            } catch (NoSuchMethodException e) {
+                // try the next prefix
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Column name, as used in the builder's getter and setter.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Type of the values of this column, as taken by the builder setter.
+     */
+    public Class<?> getType() {
+        return type;
+    }
+
+    public OID getBaseOID() {
+        return baseOID;
+    }
+
+    public Decoder getDecoder() {
+        return decoder;
+    }
+
+    /**
+     * Decode a value and set it on a row builder.
+     */
+    public void apply(Object builder, Variable variable) throws Throwable {
+        Object value = decoder.decode(variable);
+        if (value != null) {
+            Object ignored = (Object) setter.invokeExact(builder, value);
+        }
+    }
+
+    /**
+     * Decode this column's part of a row index and set it on a row builder,
+     * for index columns that cannot be read from the device. Integers take
+     * one sub-identifier, IP addresses four, and strings a length followed
+     * by one sub-identifier per octet (RFC 2578 section 7.7). IMPLIED
+     * indexes are not supported.
+     *
+     * @param from position of this column's part in the index
+     * @return position of the next column's part
+     */
+    int applyIndex(Object builder, RowIndex index, int from) throws Throwable {
+        Variable variable;
+        int next;
+        if (type.equals(Ipv4Address.class) || type.equals(InetAddress.class)) {
+            byte[] address = new byte[4];
+            for (int i = 0; i < address.length; i++) {
+                address[i] = (byte) index.get(from + i);
+            }
+            variable = new IpAddress(address);
+            next = from + address.length;
+        } else if (type.equals(PhysAddress.class) || type.equals(MacAddress.class)
+                || type.equals(String.class) || type.equals(DisplayString.class)) {
+            byte[] octets = new byte[(int) index.get(from)];
+            for (int i = 0; i < octets.length; i++) {
+                octets[i] = (byte) index.get(from + 1 + i);
+            }
+            variable = new OctetString(octets);
+            next = from + 1 + octets.length;
+        } else {
+            variable = new UnsignedInteger32(index.get(from));
+            next = from + 1;
+        }
+        apply(builder, variable);
+        return next;
+    }
+
+    /**
+     * Set a value that is already decoded, such as one read back with
+     * {@link #read(Object)}, on a row builder.
+     */
+    public void set(Object builder, Object value) throws Throwable {
+        Object ignored = (Object) setter.invokeExact(builder, value);
+    }
+
+    /**
+     * Read the column's value back from a row builder.
+     *
+     * @return the value, or null if it is unset or the builder has no getter
+     */
+    public Object read(Object builder) {
+        if (getter == null) {
+            return null;
+        }
+        try {
+            return (Object) getter.invokeExact(builder);
+        } catch (Throwable e) {
+            return null;
+        }
+    }
+
+    /**
+     * Text of a value of this column, as published.
+     */
+    public String format(Object value) {
+        Object data = value;
+        if (valueOf != null) {
+            try {
+                data = (Object) valueOf.invokeExact(value);
+            } catch (Throwable e) {
+                data = value;
+            }
+        }
+        return String.valueOf(data);
+    }
+
+    /*
+     * Map the type of object expected by the set method to a decoder.
+     */
+    static Decoder decoderFor(final Class<?> objectType) {
+        if (objectType.equals(Counter32.class)) {
+            return new Decoder() {
+                @Override
+                public Object decode(Variable variable) {
+                    return new Counter32(variable.toLong());
+                }
+            };
+        } else if (objectType.equals(Counter64.class)) {
+            return new Decoder() {
+                @Override
+                public Object decode(Variable variable) {
+                    return new Counter64(unsigned64(variable.toLong()));
+                }
+            };
+        } else if (objectType.equals(MacAddress.class)) {
+            return new Decoder() {
+                @Override
+                public Object decode(Variable variable) {
+                    return new MacAddress(((OctetString) variable).toHexString(':'));
+                }
+            };
+        } else if (objectType.equals(Ipv4Address.class)) {
+            return new Decoder() {
+                @Override
+                public Object decode(Variable variable) {
+                    return new Ipv4Address(variable.toString());
+                }
+            };
+        } else if (objectType.equals(Long.class)) {
+            return new Decoder() {
+                @Override
+                public Object decode(Variable variable) {
+                    return variable.toLong();
+                }
+            };
+        } else if (objectType.equals(Integer.class)) {
+            return new Decoder() {
+                @Override
+                public Object decode(Variable variable) {
+                    return variable.toInt();
+                }
+            };
+        } else if (objectType.equals(InterfaceIndexOrZero.class)) {
+            return new Decoder() {
+                @Override
+                public Object decode(Variable variable) {
+                    return new InterfaceIndexOrZero(variable.toInt());
+                }
+            };
+        } else if (objectType.equals(Timestamp.class)) {
+            return new Decoder() {
+                @Override
+                public Object decode(Variable variable) {
+                    return new Timestamp(variable.toLong());
+                }
+            };
+        } else if (objectType.equals(InetAddress.class)) {
+            return new Decoder() {
+                @Override
+                public Object decode(Variable variable) {
+                    return ((IpAddress) variable).getInetAddress();
+                }
+            };
+        } else if (Enum.class.isAssignableFrom(objectType)) {
+            return enumDecoder(objectType);
+        } else if (objectType.equals(PhysAddress.class)) {
+            return new Decoder() {
+                @Override
+                public Object decode(Variable variable) {
+                    if (variable instanceof OctetString) {
+                        return new PhysAddress(((OctetString) variable).toHexString(':'));
+                    }
+                    return new PhysAddress(variable.toString());
+                }
+            };
+        } else if (objectType.equals(String.class)) {
+            return new Decoder() {
+                @Override
+                public Object decode(Variable variable) {
+                    return variable.toString();
+                }
+            };
+        } else if (objectType.equals(Gauge32.class)) {
+            return new Decoder() {
+                @Override
+                public Object decode(Variable variable) {
+                    return new Gauge32(variable.toLong());
+                }
+            };
+        } else if (objectType.equals(InterfaceIndex.class)) {
+            return new Decoder() {
+                @Override
+                public Object decode(Variable variable) {
+                    return new InterfaceIndex(variable.toInt());
+                }
+            };
+        } else if (objectType.equals(Timeticks.class)) {
+            return new Decoder() {
+                @Override
+                public Object decode(Variable variable) {
+                    return new Timeticks(variable.toLong());
+                }
+            };
+        } else if (objectType.equals(DisplayString.class)) {
+            return new Decoder() {
+                @Override
+                public Object decode(Variable variable) {
+                    return new DisplayString(variable.toString());
+                }
+            };
+        }
+        return null;
+    }
+
+    /*
+     * Generated enumerations carry their SMI value in getIntValue(); resolve
+     * the value to constant mapping once instead of per varbind.
+     */
+    private static Decoder enumDecoder(Class<?> objectType) {
+        final Map<Integer, Object> constants = new HashMap<>();
+        Object[] values = objectType.getEnumConstants();
+        for (int i = 0; i < values.length; i++) {
+            int value = i;
+            try {
+                value = (Integer) objectType.getMethod("getIntValue").invoke(values[i]);
+            } catch (ReflectiveOperationException | ClassCastException e) {
+                // not a generated enumeration, fall back to the ordinal
+            }
+            constants.put(value, values[i]);
+        }
+        return new Decoder() {
+            @Override
+            public Object decode(Variable variable) {
+                return constants.get(variable.toInt());
+            }
+        };
+    }
+
+    static BigInteger unsigned64(long value) {
+        BigInteger result = BigInteger.valueOf(value);
+        return value >= 0 ? result : result.add(TWO_TO_64);
+    }
+}
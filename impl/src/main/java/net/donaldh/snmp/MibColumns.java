@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2014, 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package net.donaldh.snmp;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import org.opendaylight.snmp.OID;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The columns of a builder class, resolved from its {@link OID} annotated
+ * setters once per class and then shared by every poll.
+ *
+ * <p>Setters without an OID, such as the ifIndex leafref of
+ * ifRcvAddressEntry, are leaves the MIB only has as part of the row index.
+ * They are never walked, but are kept as index columns so that
+ * {@link MibTable#index(String...)} can fill them in.
+ */
+public final class MibColumns<T> {
+    private static final Logger LOG = LoggerFactory.getLogger(MibColumns.class);
+
+    private static final ClassValue<MibColumns<?>> CACHE = new ClassValue<MibColumns<?>>() {
+        @Override
+        protected MibColumns<?> computeValue(Class<?> type) {
+            return new MibColumns<>(type);
+        }
+    };
+
+    private final Class<T> builderClass;
+    private final List<MibColumn> columns;
+    private final List<MibColumn> indexOnlyColumns;
+    private final MethodHandle constructor;
+
+    private MibColumns(Class<T> builderClass) {
+        this.builderClass = builderClass;
+        List<MibColumn> list = new ArrayList<>();
+        List<MibColumn> indexOnly = new ArrayList<>();
+        for (Method method : builderClass.getMethods()) {
+            if (!method.getName().startsWith("set") || method.getParameterTypes().length != 1) {
+                continue;
+            }
+            OID oid = method.getAnnotation(OID.class);
+            try {
+                MibColumn column = new MibColumn(method, oid != null ? oid.value() : "");
+                if (column.getDecoder() == null) {
+                    if (oid != null) {
+                        LOG.debug("No decoder for {}.{}", builderClass.getSimpleName(), method.getName());
+                    }
+                } else if (oid != null) {
+                    list.add(column);
+                } else {
+                    indexOnly.add(column);
+                }
+            } catch (IllegalAccessException e) {
+                LOG.warn("Cannot access {}.{}", builderClass.getSimpleName(), method.getName(), e);
+            }
+        }
+        this.columns = Collections.unmodifiableList(list);
+        this.indexOnlyColumns = Collections.unmodifiableList(indexOnly);
+        try {
+            this.constructor = MethodHandles.publicLookup()
+                    .findConstructor(builderClass, MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("No public constructor for " + builderClass.getName(), e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> MibColumns<T> forClass(Class<T> builderClass) {
+        return (MibColumns<T>) CACHE.get(builderClass);
+    }
+
+    public Class<T> getBuilderClass() {
+        return builderClass;
+    }
+
+    public List<MibColumn> getColumns() {
+        return columns;
+    }
+
+    /**
+     * Columns that only appear in the row index and have no OID of their own.
+     */
+    public List<MibColumn> getIndexOnlyColumns() {
+        return indexOnlyColumns;
+    }
+
+    /**
+     * A column that can be filled in from the row index, by name without
+     * regard to case, whether or not it has an OID.
+     *
+     * @return the column, or null if the builder has no such setter
+     */
+    public MibColumn getIndexColumn(String name) {
+        String lower = name.toLowerCase(Locale.ROOT);
+        for (List<MibColumn> list : Arrays.asList(columns, indexOnlyColumns)) {
+            for (MibColumn column : list) {
+                if (column.getName().toLowerCase(Locale.ROOT).equals(lower)) {
+                    return column;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Create an empty row builder.
+     */
+    @SuppressWarnings("unchecked")
+    public T newRow() {
+        try {
+            return (T) (Object) constructor.invokeExact();
+        } catch (Throwable e) {
+            throw new IllegalStateException("Failed to create " + builderClass.getName(), e);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2014, 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package net.donaldh.snmp;
+
+import java.util.List;
+
+import org.snmp4j.smi.VariableBinding;
+
+/**
+ * One row of a walk: the builder of the table's own columns and the builders
+ * of any tables joined on the same index, such as ifXTable on ifTable.
+ */
+public final class MibRow<T> {
+
+    /**
+     * Visits the values set on a row.
+     */
+    public interface ValueVisitor {
+        void visit(MibColumn column, Object value);
+    }
+
+    private final RowIndex index;
+    private final List<MibColumns<?>> layout;
+    private final Object[] builders;
+    private final List<VariableBinding> scalars;
+
+    MibRow(RowIndex index, List<MibColumns<?>> layout, List<VariableBinding> scalars) {
+        this.index = index;
+        this.layout = layout;
+        this.scalars = scalars;
+        this.builders = new Object[layout.size()];
+        this.builders[0] = layout.get(0).newRow();
+    }
+
+    public RowIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * The builder of the table's own columns. Joined tables are attached to
+     * it as augmentations once the row is complete.
+     */
+    @SuppressWarnings("unchecked")
+    public T getBuilder() {
+        return (T) builders[0];
+    }
+
+    /**
+     * The builder of a joined table, or null if none of its cells arrived.
+     */
+    public Object getJoined(int slot) {
+        return builders[slot];
+    }
+
+    Object builder(int slot) {
+        Object builder = builders[slot];
+        if (builder == null) {
+            builder = layout.get(slot).newRow();
+            builders[slot] = builder;
+        }
+        return builder;
+    }
+
+    /**
+     * The scalars fetched with the walk this row came from. They are shared
+     * by every row of the walk.
+     */
+    public List<VariableBinding> getScalars() {
+        return scalars;
+    }
+
+    /**
+     * Visit every value set on this row, own columns first, starting with
+     * those that are only part of the index.
+     */
+    public void forEachValue(ValueVisitor visitor) {
+        visit(layout.get(0).getIndexOnlyColumns(), builders[0], visitor);
+        for (int slot = 0; slot < builders.length; slot++) {
+            if (builders[slot] != null) {
+                visit(layout.get(slot).getColumns(), builders[slot], visitor);
+            }
+        }
+    }
+
+    private static void visit(List<MibColumn> columns, Object builder, ValueVisitor visitor) {
+        for (MibColumn column : columns) {
+            Object value = column.read(builder);
+            if (value != null) {
+                visitor.visit(column, value);
+            }
+        }
+    }
+
+    /**
+     * A 64-bit hash over every column value of the row, used to tell whether
+     * a row changed between polls without keeping the row itself.
+     */
+    public long fingerprint() {
+        long hash = 0xcbf29ce484222325L;
+        for (int slot = 0; slot < builders.length; slot++) {
+            for (MibColumn column : layout.get(slot).getColumns()) {
+                Object value = builders[slot] == null ? null : column.read(builders[slot]);
+                hash = (hash ^ (value == null ? 0 : value.hashCode())) * 0x100000001b3L;
+            }
+        }
+        return hash;
+    }
+}
@@ -8,251 +8,466 @@
 
 package net.donaldh.snmp;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
-import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeoutException;
-
-import org.opendaylight.snmp.OID;
-import org.opendaylight.yang.gen.v1.urn.ietf.params.xml.ns.yang.ieee.types.rev080522.MacAddress;
-import org.opendaylight.yang.gen.v1.urn.ietf.params.xml.ns.yang.ietf.inet.types.rev130715.Ipv4Address;
-import org.opendaylight.yang.gen.v1.urn.ietf.params.xml.ns.yang.ietf.yang.types.rev130715.Counter32;
-import org.opendaylight.yang.gen.v1.urn.ietf.params.xml.ns.yang.ietf.yang.types.rev130715.Counter64;
-import org.opendaylight.yang.gen.v1.urn.ietf.params.xml.ns.yang.ietf.yang.types.rev130715.Gauge32;
-import org.opendaylight.yang.gen.v1.urn.ietf.params.xml.ns.yang.ietf.yang.types.rev130715.PhysAddress;
-import org.opendaylight.yang.gen.v1.urn.ietf.params.xml.ns.yang.ietf.yang.types.rev130715.Timestamp;
-import org.opendaylight.yang.gen.v1.urn.ietf.params.xml.ns.yang.ietf.yang.types.rev130715.Timeticks;
-import org.opendaylight.yang.gen.v1.urn.ietf.params.xml.ns.yang.smiv2._if.mib.rev000614.InterfaceIndex;
-import org.opendaylight.yang.gen.v1.urn.ietf.params.xml.ns.yang.smiv2._if.mib.rev000614.InterfaceIndexOrZero;
-import org.opendaylight.yang.gen.v1.urn.ietf.params.xml.ns.yang.smiv2.inet.address.mib.rev050204.InetAddress;
-import org.opendaylight.yang.gen.v1.urn.ietf.params.xml.ns.yang.smiv2.snmpv2.tc.rev990401.DisplayString;
+import java.util.Set;
+
+import org.opendaylight.yangtools.yang.binding.Augmentation;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.snmp4j.Snmp;
-import org.snmp4j.smi.IpAddress;
-import org.snmp4j.smi.OctetString;
-import org.snmp4j.smi.TimeTicks;
-import org.snmp4j.smi.Variable;
+import org.snmp4j.Target;
 import org.snmp4j.smi.VariableBinding;
 
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
 public class MibTable<T> {
     private static final Logger LOG = LoggerFactory.getLogger(MibTable.class);
 
-    private Class<T> builderClass;
-    private Map<Integer, T> indexToBuilderObject;
-    private Snmp snmp;
-    private String address;
-    private String community;
-    private int port;
+    // Always walked so that every published row carries its index
+    private static final String INDEX_COLUMN = "IfIndex";
 
-    public MibTable(Snmp snmp, String address, String community, int port, Class<T> builderClass) {
-        this.snmp = snmp;
-        this.address = address;
-        this.community = community;
-        this.port = port;
-        this.builderClass = builderClass;
+    /**
+     * Receives each row of a walk as soon as all of its columns have arrived.
+     */
+    public interface RowCallback<T> {
+        void onRow(MibRow<T> row);
     }
 
-    public Map<Integer, T> populate() {
-        Collection<GetDataObject> getDataObjects = new ArrayList<>();
-        indexToBuilderObject = new HashMap<>();
+    /**
+     * The outcome of a walk.
+     */
+    public static final class WalkResult {
+        private final int rows;
+        private final boolean complete;
 
-        // Send out each of the requests
-        for (Method method : builderClass.getMethods()) {
-            if (method.getName().startsWith("set")) {
-                GetDataObject dataObject = new GetDataObject();
-                dataObject.setSetMethod(method);
-
-                dataObject = sendRequest(dataObject);
-                if (dataObject.getListFuture() != null) {
-                    getDataObjects.add(dataObject);
-                }
-            }
+        WalkResult(int rows, boolean complete) {
+            this.rows = rows;
+            this.complete = complete;
         }
 
-        for (GetDataObject getDataObject : getDataObjects) {
-            parse(getDataObject);
+        /**
+         * Number of rows delivered.
+         */
+        public int getRows() {
+            return rows;
         }
 
-        return indexToBuilderObject;
-    }
-
-    private GetDataObject sendRequest(GetDataObject dataObject) {
-        Method method = dataObject.getSetMethod();
-
-        if (method != null && method.getName().startsWith("set")) {
-            OID oid = method.getAnnotation(OID.class);
-            if (oid != null) {
-                String oidString = oid.value();
-                dataObject.setBaseOID(oidString);
-
-                AsyncGetHandler getHandler = new AsyncGetHandler(oidString, address, community, port, snmp);
-                dataObject.setListFuture(getHandler.getListResponse());
-            }
+        /**
+         * False if the device stopped answering part way and the walk ended
+         * with the rows received until then.
+         */
+        public boolean isComplete() {
+            return complete;
         }
-        return dataObject;
     }
 
-    private void parse(GetDataObject dataObject) {
-
-        Future<List<VariableBinding>> future = dataObject.getListFuture();
-        List<VariableBinding> variableBindings;
-        try {
-            variableBindings = future.get();
-        } catch (Throwable e) {
-            if (e instanceof ExecutionException && e.getCause() instanceof TimeoutException) {
-                LOG.warn(e.getCause().getMessage());
-            } else {
-                LOG.warn("SNMP error", e);
-            }
-            return;
-        }
+    private final List<MibColumns<?>> layout = new ArrayList<>();
+    private final List<Augmenter> augmenters = new ArrayList<>();
+    private final List<org.snmp4j.smi.OID> scalars = new ArrayList<>();
+    private Set<String> selected;
+    private final List<String> indexNames = new ArrayList<>();
+    private DeviceProfile profile;
+    private RequestPolicy policy;
+    private RequestGate gate;
+    private RowCache cache;
+    private Snmp snmp;
+    private Target target;
 
-        Method method = dataObject.getSetMethod();
-        org.snmp4j.smi.OID baseOID = new org.snmp4j.smi.OID(dataObject.getBaseOID());
+    /**
+     * @param target the device, used by every walk of this table; null fails the walks
+     */
+    public MibTable(Snmp snmp, Target target, Class<T> builderClass) {
+        this.snmp = snmp;
+        this.target = target;
+        this.layout.add(MibColumns.forClass(builderClass));
+        this.augmenters.add(null);
+    }
 
-        // Send the request for the oid
-        Variable variable = null;
-        Class<?> objectType = null;
-        for (int i = 0; i < variableBindings.size(); i++) {
-            VariableBinding variableBinding = variableBindings.get(i);
+    /**
+     * Walk the columns of another table with the same index in the same
+     * requests, e.g. ifXTable with ifTable. Its rows are attached to the rows
+     * of this table as augmentations.
+     *
+     * @param augmentationBuilder builder class of the augmentation the joined table maps to
+     */
+    public MibTable<T> join(Class<?> augmentationBuilder) {
+        augmenters.add(new Augmenter(layout.get(0).getBuilderClass(), augmentationBuilder));
+        layout.add(MibColumns.forClass(augmentationBuilder));
+        return this;
+    }
 
-            try {
-                org.snmp4j.smi.OID snmpOID = variableBinding.getOid();
+    /**
+     * Fetch a scalar, such as sysUpTime, in the first request of each walk.
+     * Its value is available from every row through {@link MibRow#getScalars()}.
+     */
+    public MibTable<T> scalar(String oid) {
+        scalars.add(new org.snmp4j.smi.OID(oid));
+        return this;
+    }
 
-                if (!snmpOID.startsWith(baseOID)) {
-                    continue;
-                }
+    /**
+     * Size the requests of each walk to what has been learned about the
+     * device, and keep learning from the responses.
+     */
+    public MibTable<T> profile(DeviceProfile deviceProfile) {
+        this.profile = deviceProfile;
+        return this;
+    }
 
-                variable = variableBinding.getVariable();
+    /**
+     * Timeout and retries of the requests of each walk.
+     */
+    public MibTable<T> policy(RequestPolicy requestPolicy) {
+        this.policy = requestPolicy;
+        return this;
+    }
 
-                // Map the type of object we got based on the set method
+    /**
+     * Send the requests of each walk through the gate of the device.
+     */
+    public MibTable<T> gate(RequestGate requestGate) {
+        this.gate = requestGate;
+        return this;
+    }
 
-                objectType = method.getParameterTypes()[0];
-                Object setObject = null;
+    /**
+     * Take the named columns of the table's own builder from the row index
+     * instead of walking them, in the order they make up the index. Needed
+     * for tables whose index columns are not readable, such as ifStackTable
+     * (ifStackHigherLayer, ifStackLowerLayer) or ifRcvAddressTable (ifIndex,
+     * ifRcvAddressAddress). Names are matched like {@link #select(Collection)}.
+     */
+    public MibTable<T> index(String... columnNames) {
+        indexNames.clear();
+        for (String name : columnNames) {
+            indexNames.add(name.toLowerCase(Locale.ROOT));
+        }
+        return this;
+    }
 
-                if (objectType.equals(Counter32.class)) {
-                    setObject = new Counter32(variable.toLong());
+    /**
+     * Take the columns the cache covers from the cache instead of walking
+     * them, unless it is stale, in which case this walk refreshes it.
+     */
+    public MibTable<T> cache(RowCache rowCache) {
+        this.cache = rowCache;
+        return this;
+    }
 
-                } else if (objectType.equals(Counter64.class)) {
-                    BigInteger counter64 = new BigInteger(variable.toString());
-                    setObject = new Counter64(counter64);
+    /**
+     * Only walk the named columns. Names are matched without regard to case,
+     * so both the MIB name (ifHCInOctets) and the builder name work.
+     *
+     * @param columnNames the columns to walk, or null or empty for all
+     */
+    public MibTable<T> select(Collection<String> columnNames) {
+        if (columnNames == null || columnNames.isEmpty()) {
+            selected = null;
+        } else {
+            selected = new HashSet<>();
+            for (String name : columnNames) {
+                selected.add(name.toLowerCase(Locale.ROOT));
+            }
+            selected.add(INDEX_COLUMN.toLowerCase(Locale.ROOT));
+        }
+        return this;
+    }
 
-                } else if (objectType.equals(MacAddress.class)) {
-                    // Get the byte array
-                    OctetString octetString = (OctetString) variable;
+    /**
+     * Walk the table and collect every row. The returned future completes on
+     * the thread that receives the last response; nothing blocks while the
+     * walk is in flight.
+     */
+    public ListenableFuture<Map<RowIndex, T>> populate() {
+        final Map<RowIndex, T> rows = new LinkedHashMap<>();
+        return Futures.transform(walk(new RowCallback<T>() {
+
+            @Override
+            public void onRow(MibRow<T> row) {
+                rows.put(row.getIndex(), row.getBuilder());
+            }
 
-                    String macAddress = octetString.toHexString(':');
-                    setObject = new MacAddress(macAddress);
+        }), new Function<WalkResult, Map<RowIndex, T>>() {
 
-                } else if (objectType.equals(Ipv4Address.class)) {
-                    IpAddress ipAddress = (IpAddress) variable;
-                    setObject = new Ipv4Address(ipAddress.toString());
+            @Override
+            public Map<RowIndex, T> apply(WalkResult result) {
+                return rows;
+            }
 
-                } else if (objectType.equals(Long.class)) {
-                    setObject = variable.toLong();
+        });
+    }
 
-                } else if (objectType.equals(Integer.class)) {
-                    setObject = variable.toInt();
+    /**
+     * Walk the table, handing each row to the callback once every column has
+     * moved past its index. Only rows still waiting for some column are held,
+     * so memory use does not grow with the size of the table.
+     *
+     * <p>If the device stops answering after some rows have arrived, the walk
+     * resumes from the last cell of each column as the request policy allows
+     * and otherwise ends with what it has, marked incomplete.
+     */
+    public ListenableFuture<WalkResult> walk(RowCallback<T> callback) {
+        List<TableColumn> tableColumns = new ArrayList<>();
+        final List<TableColumn> cachedColumns = new ArrayList<>();
+        final List<MibColumn> cachedMibColumns = new ArrayList<>();
+        final MibColumn[] indexColumns = new MibColumn[indexNames.size()];
+        for (int position = 0; position < indexColumns.length; position++) {
+            indexColumns[position] = layout.get(0).getIndexColumn(indexNames.get(position));
+            if (indexColumns[position] == null) {
+                LOG.warn("{} has no index column {}", layout.get(0).getBuilderClass().getSimpleName(),
+                        indexNames.get(position));
+            }
+        }
+        for (int slot = 0; slot < layout.size(); slot++) {
+            for (MibColumn column : layout.get(slot).getColumns()) {
+                if (slot == 0 && indexNames.contains(column.getName().toLowerCase(Locale.ROOT))) {
+                    continue;
+                }
+                if (selected == null || selected.contains(column.getName().toLowerCase(Locale.ROOT))) {
+                    if (cache != null && cache.covers(column)) {
+                        cachedColumns.add(new TableColumn(slot, column));
+                        cachedMibColumns.add(column);
+                    } else {
+                        tableColumns.add(new TableColumn(slot, column));
+                    }
+                }
+            }
+        }
+        final boolean refresh = !cachedColumns.isEmpty() && !cache.isValidFor(cachedMibColumns);
+        if (refresh) {
+            tableColumns.addAll(cachedColumns);
+            cache.begin();
+        }
+        if (tableColumns.isEmpty()) {
+            return Futures.immediateFuture(new WalkResult(0, true));
+        }
 
-                } else if (objectType.equals(InterfaceIndexOrZero.class)) {
-                    setObject = new InterfaceIndexOrZero(Integer.valueOf(variable.toString()));
+        List<org.snmp4j.smi.OID> baseOIDs = new ArrayList<>(tableColumns.size());
+        for (TableColumn column : tableColumns) {
+            baseOIDs.add(column.column.getBaseOID());
+        }
 
-                } else if (objectType.equals(Timestamp.class)) {
-                    setObject = new Timestamp(variable.toLong());
+        // Walk all of the columns together
+        final TableWalker walker = new TableWalker(snmp, target, scalars, baseOIDs)
+                .setProfile(profile).setPolicy(policy).setGate(gate);
+        final RowAssembler assembler = new RowAssembler(tableColumns, walker.getScalars(), callback,
+                indexColumns, cachedColumns, refresh);
+        walker.setListener(assembler);
 
-                } else if (objectType.equals(InetAddress.class)) {
-                    org.snmp4j.smi.IpAddress ipAddress = (org.snmp4j.smi.IpAddress) variable;
-                    setObject = ipAddress.getInetAddress();
+        return Futures.transform(walker.walk(), new Function<List<List<VariableBinding>>, WalkResult>() {
 
-                } else if (Enum.class.isAssignableFrom(objectType)) {
-                    setObject = objectType.getEnumConstants()[variable.toInt()];
+            @Override
+            public WalkResult apply(List<List<VariableBinding>> ignored) {
+                int rows = assembler.flush();
+                if (refresh) {
+                    cache.end(cachedMibColumns, walker.isComplete());
+                }
+                return new WalkResult(rows, walker.isComplete());
+            }
 
-                } else if (objectType.equals(PhysAddress.class)) {
-                    setObject = new PhysAddress(variable.toString());
+        });
+    }
 
-                } else if (objectType.equals(String.class)) {
-                    setObject = variable.toString();
+    private static final class TableColumn {
+        final int slot;
+        final MibColumn column;
 
-                } else if (objectType.equals(Gauge32.class)) {
-                    setObject = new Gauge32(variable.toLong());
+        TableColumn(int slot, MibColumn column) {
+            this.slot = slot;
+            this.column = column;
+        }
+    }
 
-                } else if (objectType.equals(InterfaceIndex.class)) {
-                    setObject = new InterfaceIndex(variable.toInt());
+    /*
+     * Attaches the built row of a joined table to a row builder through its
+     * generated addAugmentation() method, resolved once.
+     */
+    private static final class Augmenter {
+        private final Class<?> augmentation;
+        private final MethodHandle build;
+        private final MethodHandle addAugmentation;
 
-                } else if (objectType.equals(Timeticks.class)) {
-                    TimeTicks timeTicks = (TimeTicks) variable;
-                    setObject = new TimeTicks(timeTicks.toMilliseconds());
-                } else if (objectType.equals(DisplayString.class)) {
-                    setObject = new DisplayString(variable.toString());
-                }
+        Augmenter(Class<?> builderClass, Class<?> augmentationBuilder) {
+            try {
+                Method buildMethod = augmentationBuilder.getMethod("build");
+                augmentation = buildMethod.getReturnType();
+                build = MethodHandles.publicLookup().unreflect(buildMethod)
+                        .asType(MethodType.methodType(Object.class, Object.class));
+                addAugmentation = MethodHandles.publicLookup()
+                        .unreflect(builderClass.getMethod("addAugmentation", Class.class, Augmentation.class))
+                        .asType(MethodType.methodType(Object.class, Object.class, Class.class, Object.class));
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalArgumentException(augmentationBuilder.getName() + " does not augment "
+                        + builderClass.getName(), e);
+            }
+        }
 
-                // Get the index of from the OID
-                Integer index = getIndexFromOID(snmpOID.toString());
+        void attach(Object builder, Object augmentationBuilder) throws Throwable {
+            Object built = (Object) build.invokeExact(augmentationBuilder);
+            Object ignored = (Object) addAugmentation.invokeExact(builder, augmentation, built);
+        }
+    }
 
-                T builderObject;
+    /*
+     * Builds rows from the interleaved cells of a multi-column walk.
+     */
+    private class RowAssembler implements TableWalker.Listener {
+        private final List<TableColumn> tableColumns;
+        private final List<VariableBinding> scalarBindings;
+        private final RowCallback<T> callback;
+        private final MibColumn[] indexColumns;
+        private final List<TableColumn> cachedColumns;
+        private final boolean refresh;
+        private final RowMap<MibRow<T>> pending = new RowMap<>();
+        private int count;
+
+        /*
+         * When refreshing, the cached columns are among the walked columns
+         * and their values go to the cache; otherwise they come from it.
+         */
+        RowAssembler(List<TableColumn> tableColumns, List<VariableBinding> scalarBindings, RowCallback<T> callback,
+                MibColumn[] indexColumns, List<TableColumn> cachedColumns, boolean refresh) {
+            this.tableColumns = tableColumns;
+            this.scalarBindings = scalarBindings;
+            this.callback = callback;
+            this.indexColumns = indexColumns;
+            this.cachedColumns = cachedColumns;
+            this.refresh = refresh;
+        }
 
-                if (setObject == null)
-                    continue;
+        @Override
+        public void onCell(int column, VariableBinding variableBinding) {
+            TableColumn tableColumn = tableColumns.get(column);
+            MibColumn mibColumn = tableColumn.column;
+            int columnLength = mibColumn.getBaseOID().size();
 
-                if (!indexToBuilderObject.containsKey(index)) {
-                    builderObject = builderClass.newInstance();
-                    indexToBuilderObject.put(index, builderObject);
+            try {
+                org.snmp4j.smi.OID snmpOID = variableBinding.getOid();
+                if (snmpOID.size() == columnLength) {
+                    return;
                 }
 
-                builderObject = indexToBuilderObject.get(index);
+                // The index is the rest of the OID after the column
+                MibRow<T> row = pending.get(snmpOID, columnLength);
+                if (row == null) {
+                    RowIndex index = RowIndex.of(snmpOID, columnLength);
+                    row = new MibRow<>(index, layout, scalarBindings);
+                    pending.put(index, row);
+                    applyIndex(row);
+                }
 
                 try {
-                    method.invoke(builderObject, setObject);
-                } catch (Exception e) {
-                    LOG.debug(String.format("Error invoking %s with %s", method.getName(), setObject));
+                    mibColumn.apply(row.builder(tableColumn.slot), variableBinding.getVariable());
+                } catch (Throwable e) {
+                    LOG.debug(String.format("Error setting %s with %s", mibColumn.getName(), variableBinding.getVariable()));
                 }
 
             } catch (Exception e) {
                 LOG.warn("Populate Exception", e);
             }
         }
-    }
-
-    private static Integer getIndexFromOID(String oid) {
-        String[] splitString = oid.split("\\.");
-        String last = splitString[splitString.length - 1];
-        return new Integer(last);
-    }
 
-    private class GetDataObject {
-        private Future<List<VariableBinding>> listFuture;
-        private Method setMethod;
-        private String baseOID;
-
-        public Future<List<VariableBinding>> getListFuture() {
-            return listFuture;
+        /*
+         * A row is complete once every column still walking has reached a
+         * later index, since cells of a column arrive in index order.
+         */
+        @Override
+        public void onProgress(TableWalker walker) {
+            RowIndex bound = null;
+            for (int i = 0; i < walker.getColumnCount(); i++) {
+                if (!walker.isDone(i)) {
+                    RowIndex position = RowIndex.of(walker.getPosition(i), walker.getColumn(i).size());
+                    if (bound == null || position.compareTo(bound) < 0) {
+                        bound = position;
+                    }
+                }
+            }
+            emit(pending.removeBefore(bound));
         }
 
-        public void setListFuture(Future<List<VariableBinding>> listFuture) {
-            this.listFuture = listFuture;
+        int flush() {
+            emit(pending.removeBefore(null));
+            return count;
         }
 
-        public Method getSetMethod() {
-            return setMethod;
+        private void emit(List<Map.Entry<RowIndex, MibRow<T>>> rows) {
+            for (Map.Entry<RowIndex, MibRow<T>> entry : rows) {
+                MibRow<T> row = entry.getValue();
+                if (refresh) {
+                    store(row);
+                } else if (!cachedColumns.isEmpty()) {
+                    restore(row);
+                }
+                for (int slot = 1; slot < layout.size(); slot++) {
+                    Object joined = row.getJoined(slot);
+                    if (joined != null) {
+                        try {
+                            augmenters.get(slot).attach(row.getBuilder(), joined);
+                        } catch (Throwable e) {
+                            LOG.debug("Failed to attach {} to row {}", joined, row.getIndex(), e);
+                        }
+                    }
+                }
+                callback.onRow(row);
+                count++;
+            }
         }
 
-        public void setSetMethod(Method setMethod) {
-            this.setMethod = setMethod;
+        private void applyIndex(MibRow<T> row) {
+            int position = 0;
+            for (MibColumn column : indexColumns) {
+                if (column == null || position >= row.getIndex().size()) {
+                    return;
+                }
+                try {
+                    position = column.applyIndex(row.getBuilder(), row.getIndex(), position);
+                } catch (Throwable e) {
+                    LOG.debug("Failed to decode {} from index {}", column.getName(), row.getIndex(), e);
+                    return;
+                }
+            }
         }
 
-        public String getBaseOID() {
-            return baseOID;
+        private void store(MibRow<T> row) {
+            Object[] values = new Object[cachedColumns.size()];
+            for (int i = 0; i < values.length; i++) {
+                TableColumn cached = cachedColumns.get(i);
+                Object builder = row.getJoined(cached.slot);
+                values[i] = builder != null ? cached.column.read(builder) : null;
+            }
+            cache.put(row.getIndex(), values);
         }
 
-        public void setBaseOID(String baseOID) {
-            this.baseOID = baseOID;
+        private void restore(MibRow<T> row) {
+            Object[] values = cache.get(row.getIndex());
+            if (values == null) {
+                // A row the cache has not seen; fetch everything on the next walk
+                cache.invalidate();
+                return;
+            }
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != null) {
+                    TableColumn cached = cachedColumns.get(i);
+                    try {
+                        cached.column.set(row.builder(cached.slot), values[i]);
+                    } catch (Throwable e) {
+                        LOG.debug("Failed to restore {} of row {}", cached.column.getName(), row.getIndex(), e);
+                    }
+                }
+            }
         }
     }
 
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2014, 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package net.donaldh.snmp;
+
+import java.net.InetAddress;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.snmp4j.Target;
+
+/**
+ * The target of a node, resolved ahead of time. Resolving a host name can
+ * block, so it is done by {@link #refresh()} off the poll path, and polls
+ * only take a copy of the last resolved target.
+ */
+public class NodeTarget {
+    private static final Logger LOG = LoggerFactory.getLogger(NodeTarget.class);
+
+    private final String host;
+    // Guarded by this, with address
+    private int port;
+    private SnmpCredentials credentials;
+    private InetAddress address;
+    private volatile Target target;
+
+    public NodeTarget(String host, int port, SnmpCredentials credentials) {
+        this.host = host;
+        this.port = port;
+        this.credentials = credentials;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public synchronized SnmpCredentials getCredentials() {
+        return credentials;
+    }
+
+    /**
+     * Resolve the host again. Blocks on the resolver; a failed lookup keeps
+     * the last resolved target.
+     *
+     * @return true if the resolved address changed
+     */
+    public boolean refresh() {
+        InetAddress resolved = SnmpSettings.resolve(host);
+        if (resolved == null) {
+            return false;
+        }
+        synchronized (this) {
+            boolean changed = !resolved.equals(address);
+            address = resolved;
+            target = SnmpSettings.getTarget(resolved, port, credentials);
+            if (changed) {
+                LOG.debug("{} resolved to {}", host, resolved);
+            }
+            return changed;
+        }
+    }
+
+    /**
+     * Use another port or credentials. The resolved address is kept, so this
+     * does not block and the next poll already uses the new settings.
+     *
+     * @return true if anything changed
+     */
+    public synchronized boolean reconfigure(int port, SnmpCredentials credentials) {
+        if (port == this.port && credentials.equals(this.credentials)) {
+            return false;
+        }
+        this.port = port;
+        this.credentials = credentials;
+        if (address != null) {
+            target = SnmpSettings.getTarget(address, port, credentials);
+        }
+        return true;
+    }
+
+    /**
+     * Whether the host has been resolved at least once.
+     */
+    public boolean isResolved() {
+        return target != null;
+    }
+
+    /**
+     * A copy of the resolved target that the caller may adjust, or null if
+     * the host has not been resolved yet.
+     */
+    public Target get() {
+        Target resolved = target;
+        return resolved != null ? (Target) resolved.clone() : null;
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2014, 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package net.donaldh.snmp;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.snmp4j.PDU;
+import org.snmp4j.Snmp;
+import org.snmp4j.Target;
+import org.snmp4j.event.ResponseEvent;
+import org.snmp4j.event.ResponseListener;
+
+import com.google.common.base.Supplier;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Limits the requests outstanding to one device. Walks sent through the same
+ * gate, whether of a scheduled poll or requested on demand, take turns: a
+ * request beyond the limit waits in order until a response or timeout frees
+ * a slot, and its timeout only starts once it is sent. A request is sent from
+ * the thread that freed the slot, usually an SNMP dispatcher thread. The
+ * queue is bounded, so that a device that stopped answering does not gather
+ * requests without end; beyond it requests fail.
+ *
+ * <p>The gate also lets walks of the same subtree that overlap share one
+ * walk, see {@link #share(Object, Supplier)}.
+ */
+public class RequestGate {
+    private static final Logger LOG = LoggerFactory.getLogger(RequestGate.class);
+
+    // Guarded by this
+    private final Queue<Request> queue = new ArrayDeque<>();
+    private final int maxQueued;
+    private int limit;
+    private int inFlight;
+
+    private final ConcurrentMap<Object, ListenableFuture<?>> shared = new ConcurrentHashMap<>();
+
+    /**
+     * @param limit most requests outstanding at once, or 0 for no limit
+     * @param maxQueued most requests waiting for a slot
+     */
+    public RequestGate(int limit, int maxQueued) {
+        this.limit = limit;
+        this.maxQueued = maxQueued;
+    }
+
+    /**
+     * Change the limit. Requests already sent are not affected; waiting ones
+     * go out as soon as the new limit allows.
+     */
+    public void setLimit(int limit) {
+        synchronized (this) {
+            if (limit == this.limit) {
+                return;
+            }
+            this.limit = limit;
+        }
+        drain();
+    }
+
+    /**
+     * Send a request now if the limit allows, otherwise once it does. The
+     * listener gets the response as if the request had been sent with
+     * {@link Snmp#send(PDU, Target, Object, ResponseListener)}; a request that
+     * could not be sent after waiting gets a response event without a
+     * response, like a timeout. The caller must not change the PDU or target
+     * until then.
+     *
+     * @throws IOException if a request sent right away could not be sent, or
+     *         if too many requests are waiting already
+     */
+    public void send(Snmp snmp, PDU pdu, Target target, ResponseListener listener) throws IOException {
+        Request request = new Request(snmp, pdu, target, listener);
+        boolean queued = false;
+        synchronized (this) {
+            if (!queue.isEmpty() || isFull()) {
+                if (queue.size() >= maxQueued) {
+                    throw new IOException("Too many requests waiting for " + target.getAddress() + ": "
+                            + inFlight + " outstanding and " + queue.size() + " queued");
+                }
+                queue.add(request);
+                queued = true;
+                LOG.debug("Request to {} waits behind {} outstanding and {} queued", target.getAddress(),
+                        inFlight, queue.size() - 1);
+            } else {
+                inFlight++;
+            }
+        }
+        if (queued) {
+            // A slot may have been freed in the meantime
+            drain();
+            return;
+        }
+        try {
+            request.send();
+        } catch (IOException e) {
+            release();
+            throw e;
+        }
+    }
+
+    /**
+     * Start a walk, or if a walk with the same key is in progress, share its
+     * result instead.
+     *
+     * @param key identifies the walk, e.g. its subtree
+     * @param walk starts the walk if none is in progress
+     */
+    public <T> ListenableFuture<T> share(final Object key, Supplier<ListenableFuture<T>> walk) {
+        final SettableFuture<T> result = SettableFuture.create();
+        @SuppressWarnings("unchecked")
+        ListenableFuture<T> running = (ListenableFuture<T>) shared.putIfAbsent(key, result);
+        if (running != null) {
+            LOG.debug("Joining walk of {} in progress", key);
+            return running;
+        }
+        ListenableFuture<T> started;
+        try {
+            started = walk.get();
+        } catch (RuntimeException e) {
+            shared.remove(key, result);
+            throw e;
+        }
+        Futures.addCallback(started, new FutureCallback<T>() {
+
+            @Override
+            public void onSuccess(T value) {
+                shared.remove(key, result);
+                result.set(value);
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                shared.remove(key, result);
+                result.setException(e);
+            }
+
+        });
+        return result;
+    }
+
+    /**
+     * Requests sent and not yet answered or timed out.
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Requests waiting for a slot.
+     */
+    public synchronized int getQueued() {
+        return queue.size();
+    }
+
+    private boolean isFull() {
+        return limit > 0 && inFlight >= limit;
+    }
+
+    private void release() {
+        synchronized (this) {
+            inFlight--;
+        }
+        drain();
+    }
+
+    /*
+     * Send waiting requests while the limit allows.
+     */
+    private void drain() {
+        while (true) {
+            Request next;
+            synchronized (this) {
+                if (queue.isEmpty() || isFull()) {
+                    return;
+                }
+                next = queue.remove();
+                inFlight++;
+            }
+            try {
+                next.send();
+            } catch (IOException e) {
+                LOG.warn("Failed to send queued request to {}: {}", next.target.getAddress(), e.getMessage());
+                next.onResponse(new ResponseEvent(next.snmp, next.target.getAddress(), next.pdu, null, null, e));
+            }
+        }
+    }
+
+    /*
+     * A request and its listener, holding a slot from when it is sent until
+     * it is answered or times out.
+     */
+    private final class Request implements ResponseListener {
+        final Snmp snmp;
+        final PDU pdu;
+        final Target target;
+        final ResponseListener listener;
+        private final AtomicBoolean answered = new AtomicBoolean();
+
+        Request(Snmp snmp, PDU pdu, Target target, ResponseListener listener) {
+            this.snmp = snmp;
+            this.pdu = pdu;
+            this.target = target;
+            this.listener = listener;
+        }
+
+        void send() throws IOException {
+            snmp.send(pdu, target, null, this);
+        }
+
+        @Override
+        public void onResponse(ResponseEvent event) {
+            if (!answered.compareAndSet(false, true)) {
+                return;
+            }
+            snmp.cancel(event.getRequest(), this);
+            release();
+            listener.onResponse(event);
+        }
+    }
+}
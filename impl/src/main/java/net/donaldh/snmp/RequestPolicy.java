@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2014, 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package net.donaldh.snmp;
+
+import org.snmp4j.Target;
+
+/**
+ * Timeout and retries for the requests sent to a device. A request that times
+ * out is sent again with its timeout doubled, up to the given number of
+ * retries, so a lost datagram costs one retry rather than the whole walk and
+ * an overloaded device is given progressively more time.
+ */
+public final class RequestPolicy {
+
+    static final long MAX_TIMEOUT = 60000;
+
+    public static final RequestPolicy DEFAULT = new RequestPolicy(SnmpSettings.TIMEOUT, SnmpSettings.RETRIES);
+
+    private final long timeout;
+    private final int retries;
+
+    /**
+     * @param timeout timeout of the first attempt in milliseconds
+     * @param retries number of times a timed out request is sent again
+     */
+    public RequestPolicy(long timeout, int retries) {
+        this.timeout = Math.max(1, timeout);
+        this.retries = Math.max(0, retries);
+    }
+
+    public int getRetries() {
+        return retries;
+    }
+
+    /**
+     * Timeout of an attempt, starting from 0.
+     */
+    public long getTimeout(int attempt) {
+        return Math.min(MAX_TIMEOUT, timeout << Math.min(attempt, 16));
+    }
+
+    /**
+     * The same policy without retries, for requests such as liveness probes
+     * where a single loss is an answer.
+     */
+    public RequestPolicy withoutRetries() {
+        return retries == 0 ? this : new RequestPolicy(timeout, 0);
+    }
+
+    /**
+     * Prepare a target for an attempt. Retries are done by the caller with
+     * backoff, so snmp4j's own fixed-timeout retries are turned off.
+     */
+    void apply(Target target, int attempt) {
+        target.setRetries(0);
+        target.setTimeout(getTimeout(attempt));
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2014, 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package net.donaldh.snmp;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The values of columns that rarely change, such as ifDescr or ifMtu, kept
+ * by row so that walks can skip those columns. A {@link MibTable} given a
+ * cache walks the cached columns only while the cache is stale, and
+ * otherwise fills them into each row from here.
+ *
+ * <p>The owner decides when the values may have changed and calls
+ * {@link #invalidate()}; the next walk then fetches them again. A walk that
+ * finds a row the cache does not know invalidates it too.
+ */
+public final class RowCache {
+
+    private final Set<String> names = new HashSet<>();
+    private List<MibColumn> columns = Collections.emptyList();
+    private Map<RowIndex, Object[]> rows = new HashMap<>();
+    private Map<RowIndex, Object[]> refreshing;
+    private volatile boolean stale = true;
+    // Counts invalidations, so a refresh can tell whether one happened while it walked
+    private int generation;
+    private int refreshingGeneration;
+
+    /**
+     * @param columnNames the columns to cache, matched without regard to case
+     *        like {@link MibTable#select(Collection)}
+     */
+    public RowCache(Collection<String> columnNames) {
+        for (String name : columnNames) {
+            names.add(name.toLowerCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * Fetch the cached columns again on the next walk.
+     */
+    public synchronized void invalidate() {
+        stale = true;
+        generation++;
+    }
+
+    public boolean isStale() {
+        return stale;
+    }
+
+    boolean covers(MibColumn column) {
+        return names.contains(column.getName().toLowerCase(Locale.ROOT));
+    }
+
+    /*
+     * Whether the cache holds current values of exactly these columns.
+     */
+    boolean isValidFor(List<MibColumn> cachedColumns) {
+        return !stale && columns.equals(cachedColumns);
+    }
+
+    synchronized void begin() {
+        refreshing = new HashMap<>();
+        refreshingGeneration = generation;
+    }
+
+    void put(RowIndex index, Object[] values) {
+        refreshing.put(index, values);
+    }
+
+    Object[] get(RowIndex index) {
+        return rows.get(index);
+    }
+
+    /*
+     * Only a complete walk replaces the cache; otherwise it stays stale and
+     * the next walk tries again. The cache also stays stale if it was
+     * invalidated while the walk was under way, as the walk may have read
+     * the values from before the change.
+     */
+    synchronized void end(List<MibColumn> cachedColumns, boolean complete) {
+        if (complete) {
+            rows = refreshing;
+            columns = cachedColumns;
+            stale = generation != refreshingGeneration;
+        }
+        refreshing = null;
+    }
+
+    public int size() {
+        return rows.size();
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2014, 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package net.donaldh.snmp;
+
+import java.util.Arrays;
+
+import org.snmp4j.smi.OID;
+
+/**
+ * The instance part of a table cell OID, i.e. the sub-identifiers that follow
+ * the column OID. A single-component index such as ifIndex has one arc;
+ * composite indexes such as ifStackEntry (higher, lower) or ifRcvAddressEntry
+ * (ifIndex, length, address octets...) have several.
+ */
+public final class RowIndex implements Comparable<RowIndex> {
+
+    private final int[] arcs;
+    private final int hash;
+
+    private RowIndex(int[] arcs) {
+        this.arcs = arcs;
+        this.hash = hash(arcs, 0, arcs.length);
+    }
+
+    public static RowIndex of(int... arcs) {
+        return new RowIndex(arcs.clone());
+    }
+
+    /**
+     * Extract the index of a cell, given the length of its column OID.
+     */
+    public static RowIndex of(OID oid, int columnLength) {
+        return new RowIndex(Arrays.copyOfRange(oid.getValue(), columnLength, oid.size()));
+    }
+
+    /**
+     * Number of sub-identifiers in the index.
+     */
+    public int size() {
+        return arcs.length;
+    }
+
+    /**
+     * A sub-identifier of the index, as an unsigned value.
+     */
+    public long get(int i) {
+        return arcs[i] & 0xFFFFFFFFL;
+    }
+
+    /**
+     * The first sub-identifier, which is the whole index of tables keyed by a
+     * single integer such as ifTable.
+     */
+    public int intValue() {
+        return arcs[0];
+    }
+
+    /**
+     * The index as a single long, for keeping per-row state in primitive
+     * maps. Exact for indexes of one or two sub-identifiers, such as ifTable
+     * and ifStackTable; longer ones, such as ifRcvAddressTable, are hashed to
+     * 64 bits and may collide, so state that must tell every row apart should
+     * check {@link #isPackExact()} and key those on the index itself.
+     */
+    public long pack() {
+        if (arcs.length == 1) {
+            return get(0);
+        }
+        if (arcs.length == 2) {
+            return get(0) << 32 | get(1);
+        }
+        long h = 0xcbf29ce484222325L;
+        for (int arc : arcs) {
+            h = (h ^ (arc & 0xFFFFFFFFL)) * 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * Whether {@link #pack()} identifies this index exactly.
+     */
+    public boolean isPackExact() {
+        return arcs.length <= 2;
+    }
+
+    /**
+     * Whether this index equals the given range of sub-identifiers, without
+     * copying them.
+     */
+    boolean matches(int[] value, int from, int to) {
+        if (to - from != arcs.length) {
+            return false;
+        }
+        for (int i = 0; i < arcs.length; i++) {
+            if (arcs[i] != value[from + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static int hash(int[] value, int from, int to) {
+        int h = 1;
+        for (int i = from; i < to; i++) {
+            h = 31 * h + value[i];
+        }
+        return h;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof RowIndex)) {
+            return false;
+        }
+        RowIndex other = (RowIndex) obj;
+        return hash == other.hash && Arrays.equals(arcs, other.arcs);
+    }
+
+    /*
+     * Same ordering as the agent uses for GETNEXT: unsigned, arc by arc.
+     */
+    @Override
+    public int compareTo(RowIndex other) {
+        int n = Math.min(arcs.length, other.arcs.length);
+        for (int i = 0; i < n; i++) {
+            if (arcs[i] != other.arcs[i]) {
+                return Long.compare(get(i), other.get(i));
+            }
+        }
+        return arcs.length - other.arcs.length;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < arcs.length; i++) {
+            if (i > 0) {
+                sb.append('.');
+            }
+            sb.append(get(i));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2014, 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package net.donaldh.snmp;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.snmp4j.smi.OID;
+
+/**
+ * Rows of a table keyed by index, looked up directly from the sub-identifiers
+ * of a cell OID. A {@link RowIndex} is only allocated when a row is first
+ * seen; every further cell of that row is found without allocating.
+ */
+final class RowMap<T> {
+
+    private RowIndex[] keys = new RowIndex[64];
+    private Object[] values = new Object[64];
+    private final List<RowIndex> order = new ArrayList<>();
+
+    /**
+     * Find the row for a cell OID.
+     *
+     * @param oid the cell OID
+     * @param columnLength the length of the column OID the cell belongs to
+     * @return the row, or null if the index has not been seen yet
+     */
+    @SuppressWarnings("unchecked")
+    T get(OID oid, int columnLength) {
+        int[] value = oid.getValue();
+        int to = oid.size();
+        int mask = keys.length - 1;
+        for (int i = RowIndex.hash(value, columnLength, to) & mask; keys[i] != null; i = (i + 1) & mask) {
+            if (keys[i].matches(value, columnLength, to)) {
+                return (T) values[i];
+            }
+        }
+        return null;
+    }
+
+    void put(RowIndex index, T row) {
+        if ((order.size() + 1) * 2 > keys.length) {
+            grow();
+        }
+        if (insert(keys, values, index, row)) {
+            order.add(index);
+        }
+    }
+
+    int size() {
+        return order.size();
+    }
+
+    /**
+     * The rows in the order their indexes were first seen.
+     */
+    @SuppressWarnings("unchecked")
+    Map<RowIndex, T> toMap() {
+        Map<RowIndex, T> map = new LinkedHashMap<>();
+        int mask = keys.length - 1;
+        for (RowIndex index : order) {
+            int i = index.hashCode() & mask;
+            while (!keys[i].equals(index)) {
+                i = (i + 1) & mask;
+            }
+            map.put(index, (T) values[i]);
+        }
+        return map;
+    }
+
+    /**
+     * Remove the rows whose index sorts before a bound, or all rows when the
+     * bound is null, and return them in index order. Rows are removed in
+     * place, so the cost is in the rows held rather than the table size.
+     */
+    @SuppressWarnings("unchecked")
+    List<Map.Entry<RowIndex, T>> removeBefore(RowIndex bound) {
+        List<Map.Entry<RowIndex, T>> removed = new ArrayList<>();
+        int kept = 0;
+        for (int n = 0; n < order.size(); n++) {
+            RowIndex index = order.get(n);
+            if (bound == null || index.compareTo(bound) < 0) {
+                removed.add(new AbstractMap.SimpleImmutableEntry<>(index, (T) remove(index)));
+            } else {
+                order.set(kept++, index);
+            }
+        }
+        order.subList(kept, order.size()).clear();
+        Collections.sort(removed, new Comparator<Map.Entry<RowIndex, T>>() {
+            @Override
+            public int compare(Map.Entry<RowIndex, T> a, Map.Entry<RowIndex, T> b) {
+                return a.getKey().compareTo(b.getKey());
+            }
+        });
+        return removed;
+    }
+
+    /*
+     * Delete an index present in the table. Later entries of its probe
+     * sequence are shifted back into the gap, so no tombstones are needed.
+     */
+    private Object remove(RowIndex index) {
+        int mask = keys.length - 1;
+        int i = index.hashCode() & mask;
+        while (!keys[i].equals(index)) {
+            i = (i + 1) & mask;
+        }
+        Object row = values[i];
+        for (int j = (i + 1) & mask; keys[j] != null; j = (j + 1) & mask) {
+            int home = keys[j].hashCode() & mask;
+            // The entry may move into the gap unless its home slot lies after the gap
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+        }
+        keys[i] = null;
+        values[i] = null;
+        return row;
+    }
+
+    private static boolean insert(RowIndex[] keys, Object[] values, RowIndex index, Object row) {
+        int mask = keys.length - 1;
+        int i = index.hashCode() & mask;
+        while (keys[i] != null) {
+            if (keys[i].equals(index)) {
+                values[i] = row;
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = index;
+        values[i] = row;
+        return true;
+    }
+
+    private void grow() {
+        RowIndex[] newKeys = new RowIndex[keys.length * 2];
+        Object[] newValues = new Object[values.length * 2];
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null) {
+                insert(newKeys, newValues, keys[i], values[i]);
+            }
+        }
+        keys = newKeys;
+        values = newValues;
+    }
+}
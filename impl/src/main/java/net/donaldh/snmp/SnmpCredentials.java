@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2014, 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package net.donaldh.snmp;
+
+import java.util.Locale;
+import java.util.Objects;
+
+import org.snmp4j.CommunityTarget;
+import org.snmp4j.Target;
+import org.snmp4j.UserTarget;
+import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.security.AuthMD5;
+import org.snmp4j.security.AuthSHA;
+import org.snmp4j.security.Priv3DES;
+import org.snmp4j.security.PrivAES128;
+import org.snmp4j.security.PrivAES192;
+import org.snmp4j.security.PrivAES256;
+import org.snmp4j.security.PrivDES;
+import org.snmp4j.security.SecurityLevel;
+import org.snmp4j.security.UsmUser;
+import org.snmp4j.smi.Address;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+
+/**
+ * How to authenticate to a device: an SNMPv2c community, or an SNMPv3 USM
+ * user with optional authentication and privacy.
+ */
+public final class SnmpCredentials {
+
+    private final int version;
+    private final String community;
+    private final String securityName;
+    private final OID authProtocol;
+    private final String authPassphrase;
+    private final OID privProtocol;
+    private final String privPassphrase;
+
+    private SnmpCredentials(int version, String community, String securityName, OID authProtocol,
+            String authPassphrase, OID privProtocol, String privPassphrase) {
+        this.version = version;
+        this.community = community;
+        this.securityName = securityName;
+        this.authProtocol = authProtocol;
+        this.authPassphrase = authPassphrase;
+        this.privProtocol = privProtocol;
+        this.privPassphrase = privPassphrase;
+    }
+
+    /**
+     * SNMPv2c with a community, or the default community if null.
+     */
+    public static SnmpCredentials community(String community) {
+        return new SnmpCredentials(SnmpConstants.version2c,
+                community != null ? community : SnmpSettings.DEFAULT_COMMUNITY, null, null, null, null, null);
+    }
+
+    /**
+     * SNMPv3 with a USM user. Protocols are given by name, as in the
+     * if-table-collector model; a null or unknown protocol means none.
+     *
+     * @throws IllegalArgumentException if privacy is asked for without authentication
+     */
+    public static SnmpCredentials usm(String securityName, String authProtocol, String authPassphrase,
+            String privProtocol, String privPassphrase) {
+        OID auth = authProtocol(authProtocol);
+        OID priv = privProtocol(privProtocol);
+        if (priv != null && auth == null) {
+            throw new IllegalArgumentException("SNMPv3 privacy requires authentication");
+        }
+        return new SnmpCredentials(SnmpConstants.version3, null, securityName,
+                auth, auth != null ? authPassphrase : null, priv, priv != null ? privPassphrase : null);
+    }
+
+    static OID authProtocol(String name) {
+        switch (normalize(name)) {
+        case "md5":
+            return AuthMD5.ID;
+        case "sha":
+            return AuthSHA.ID;
+        default:
+            return null;
+        }
+    }
+
+    static OID privProtocol(String name) {
+        switch (normalize(name)) {
+        case "des":
+            return PrivDES.ID;
+        case "tripledes":
+            return Priv3DES.ID;
+        case "aes128":
+            return PrivAES128.ID;
+        case "aes192":
+            return PrivAES192.ID;
+        case "aes256":
+            return PrivAES256.ID;
+        default:
+            return null;
+        }
+    }
+
+    /*
+     * Model enumerations come through as generated Java constants such as
+     * TripleDes, so compare without case or dashes.
+     */
+    private static String normalize(String name) {
+        return name == null ? "" : name.replace("-", "").toLowerCase(Locale.ROOT);
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public boolean isUsm() {
+        return version == SnmpConstants.version3;
+    }
+
+    public OctetString getSecurityName() {
+        return new OctetString(securityName);
+    }
+
+    /**
+     * The USM user, with passphrases that still need localising to an engine.
+     */
+    UsmUser toUsmUser() {
+        return new UsmUser(getSecurityName(),
+                authProtocol, authPassphrase != null ? new OctetString(authPassphrase) : null,
+                privProtocol, privPassphrase != null ? new OctetString(privPassphrase) : null);
+    }
+
+    Target createTarget(Address address) {
+        if (isUsm()) {
+            UserTarget target = new UserTarget();
+            target.setAddress(address);
+            target.setVersion(version);
+            target.setSecurityName(getSecurityName());
+            if (privProtocol != null) {
+                target.setSecurityLevel(SecurityLevel.AUTH_PRIV);
+            } else if (authProtocol != null) {
+                target.setSecurityLevel(SecurityLevel.AUTH_NOPRIV);
+            } else {
+                target.setSecurityLevel(SecurityLevel.NOAUTH_NOPRIV);
+            }
+            return target;
+        }
+        CommunityTarget target = new CommunityTarget();
+        target.setCommunity(new OctetString(community));
+        target.setAddress(address);
+        target.setVersion(version);
+        return target;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(version, community, securityName, authProtocol, authPassphrase, privProtocol,
+                privPassphrase);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof SnmpCredentials)) {
+            return false;
+        }
+        SnmpCredentials other = (SnmpCredentials) obj;
+        return version == other.version
+                && Objects.equals(community, other.community)
+                && Objects.equals(securityName, other.securityName)
+                && Objects.equals(authProtocol, other.authProtocol)
+                && Objects.equals(authPassphrase, other.authPassphrase)
+                && Objects.equals(privProtocol, other.privProtocol)
+                && Objects.equals(privPassphrase, other.privPassphrase);
+    }
+
+    // Deliberately leaves out community and passphrases, which end up in logs
+    @Override
+    public String toString() {
+        return isUsm() ? "v3 user " + securityName : "v2c";
+    }
+}
@@ -1,42 +1,47 @@
 package net.donaldh.snmp;
 
 import java.net.Inet4Address;
+import java.net.InetAddress;
 import java.net.UnknownHostException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.snmp4j.CommunityTarget;
 import org.snmp4j.Target;
-import org.snmp4j.mp.SnmpConstants;
-import org.snmp4j.smi.Address;
-import org.snmp4j.smi.OctetString;
 import org.snmp4j.smi.UdpAddress;
 
 public class SnmpSettings {
 	
 	private static final Logger LOG = LoggerFactory.getLogger(SnmpSettings.class);
 
+    public static final String SYS_UPTIME_OID = "1.3.6.1.2.1.1.3";
+
     static final String DEFAULT_COMMUNITY = "public";
     static final Integer SNMP_LISTEN_PORT = 161;
     static final int RETRIES = 0;
     static final int TIMEOUT = 15000;
     static final int MAXREPETITIONS = 1000;
 
-    static Target getTargetForIp(String address, String community, int port) {
-        Address addr = null;
+    // Largest UDP payload over IPv4, and rough BER sizes used to fit a GETBULK response into it
+    static final int MAX_PDU_SIZE = 65507;
+    static final int PDU_OVERHEAD = 64;
+    static final int VARBIND_SIZE = 48;
+
+    /**
+     * The address of a host, or null if it does not resolve. May block.
+     */
+    static InetAddress resolve(String host) {
         try {
-            addr = new UdpAddress(Inet4Address.getByName(address), port);
+            return Inet4Address.getByName(host);
         } catch (UnknownHostException e) {
             LOG.warn("Failed to create UDP Address", e);
             return null;
         }
+    }
 
-        CommunityTarget communityTarget = new CommunityTarget();
-        communityTarget.setCommunity(new OctetString(community));
-        communityTarget.setAddress(addr);
-        communityTarget.setRetries(RETRIES);
-        communityTarget.setTimeout(TIMEOUT);
-        communityTarget.setVersion(SnmpConstants.version2c);
-        return communityTarget;
+    static Target getTarget(InetAddress address, int port, SnmpCredentials credentials) {
+        Target target = credentials.createTarget(new UdpAddress(address, port));
+        target.setRetries(RETRIES);
+        target.setTimeout(TIMEOUT);
+        return target;
     }
 }
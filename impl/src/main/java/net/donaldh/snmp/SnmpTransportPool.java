@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2014, 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package net.donaldh.snmp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.snmp4j.MessageDispatcher;
+import org.snmp4j.MessageDispatcherImpl;
+import org.snmp4j.Snmp;
+import org.snmp4j.mp.MPv1;
+import org.snmp4j.mp.MPv2c;
+import org.snmp4j.mp.CounterSupport;
+import org.snmp4j.mp.MPv3;
+import org.snmp4j.security.SecurityModel;
+import org.snmp4j.security.SecurityModels;
+import org.snmp4j.security.SecurityProtocols;
+import org.snmp4j.security.USM;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.UdpAddress;
+import org.snmp4j.transport.DefaultUdpTransportMapping;
+import org.snmp4j.util.MultiThreadedMessageDispatcher;
+import org.snmp4j.util.ThreadPool;
+
+/**
+ * A fixed set of UDP sockets shared by all devices. Each socket has its own
+ * listen thread and an enlarged receive buffer, and decoding of the responses
+ * it receives is handed to a dispatcher pool shared by all sockets, so the
+ * listen threads only drain their sockets. A device always uses the same
+ * socket, chosen by a hash of its address.
+ *
+ * <p>All sockets share one USM, so SNMPv3 users localised to a device's
+ * engine are usable whichever socket the device is on. The USM belongs to the
+ * pool and is not registered with the process-wide {@link SecurityModels},
+ * so other SNMP users in the same container do not see these users.
+ */
+public class SnmpTransportPool implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(SnmpTransportPool.class);
+
+    private final List<Snmp> sessions = new ArrayList<>();
+    private final ThreadPool dispatchers;
+    private final UsmEngines engines;
+
+    /**
+     * @param sockets number of UDP sockets
+     * @param dispatcherThreads number of threads decoding responses
+     * @param receiveBufferSize SO_RCVBUF of each socket in bytes, or 0 for the system default
+     */
+    public SnmpTransportPool(int sockets, int dispatcherThreads, int receiveBufferSize) throws IOException {
+        dispatchers = ThreadPool.create("SnmpDispatcher", Math.max(1, dispatcherThreads));
+        SecurityProtocols.getInstance().addDefaultProtocols();
+        USM usm = new USM(SecurityProtocols.getInstance(), new OctetString(MPv3.createLocalEngineID()), 0);
+        SecurityModels securityModels = SecurityModels.getCollection(new SecurityModel[] { usm });
+        engines = new UsmEngines(usm);
+        try {
+            for (int i = 0; i < Math.max(1, sockets); i++) {
+                DefaultUdpTransportMapping transport = new DefaultUdpTransportMapping(new UdpAddress("0.0.0.0/0"));
+                if (receiveBufferSize > 0) {
+                    transport.setReceiveBufferSize(receiveBufferSize);
+                }
+                MessageDispatcher dispatcher = new MultiThreadedMessageDispatcher(dispatchers,
+                        new MessageDispatcherImpl());
+                dispatcher.addMessageProcessingModel(new MPv1());
+                dispatcher.addMessageProcessingModel(new MPv2c());
+                // Not MPv3(usm), which also adds the USM to SecurityModels.getInstance()
+                dispatcher.addMessageProcessingModel(new MPv3(usm.getLocalEngineID().getValue(), null,
+                        SecurityProtocols.getInstance(), securityModels, CounterSupport.getInstance()));
+
+                Snmp snmp = new Snmp(dispatcher, transport);
+                sessions.add(snmp);
+                snmp.listen();
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        LOG.info("Listening on {} SNMP sockets with {} dispatcher threads", sessions.size(), dispatcherThreads);
+    }
+
+    /**
+     * The session to use for a device.
+     */
+    public Snmp forAddress(String address) {
+        return sessions.get((address.hashCode() & Integer.MAX_VALUE) % sessions.size());
+    }
+
+    /**
+     * The SNMPv3 engines discovered on any socket.
+     */
+    public UsmEngines getEngines() {
+        return engines;
+    }
+
+    @Override
+    public void close() {
+        for (Snmp snmp : sessions) {
+            try {
+                snmp.close();
+            } catch (IOException e) {
+                LOG.warn("Failed to close SNMP session", e);
+            }
+        }
+        sessions.clear();
+        dispatchers.stop();
+    }
+}
@@ -0,0 +1,387 @@
+/*
+ * Copyright (c) 2014, 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package net.donaldh.snmp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.snmp4j.PDU;
+import org.snmp4j.Snmp;
+import org.snmp4j.Target;
+import org.snmp4j.event.ResponseEvent;
+import org.snmp4j.event.ResponseListener;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.VariableBinding;
+import org.snmp4j.util.DefaultPDUFactory;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Walks several table columns at once. Every GETBULK carries one varbind per
+ * column that is still inside its subtree, so a table is retrieved in about as
+ * many round trips as a single column would need. Optional scalar OIDs are
+ * fetched once as non-repeaters of the first request.
+ *
+ * <p>Without a {@link Listener} the bindings of each column are collected and
+ * returned when the walk completes; with one, they are passed on as each
+ * response arrives and not retained.
+ *
+ * <p>With a {@link DeviceProfile} requests are sized to what the device has
+ * been seen to handle, and a tooBig response is retried with fewer
+ * repetitions instead of ending the walk. Only tooBig and truncated
+ * responses shrink the profile; timeouts do not. A request that times out is
+ * sent again as its {@link RequestPolicy} allows; each column resumes after
+ * its last cell, so nothing already received is asked for again. When
+ * retries run out after cells have been received, the walk ends with those
+ * and is marked incomplete rather than failing.
+ */
+public class TableWalker implements ResponseListener {
+    private static final Logger LOG = LoggerFactory.getLogger(TableWalker.class);
+
+    // Timed out requests resumed over a whole walk, on top of the per-request retries
+    static final int MAX_RESUMES = 16;
+
+    /**
+     * Receives the cells of a walk as they arrive.
+     */
+    public interface Listener {
+        /**
+         * A cell of the given column, in ascending index order per column.
+         */
+        void onCell(int column, VariableBinding binding);
+
+        /**
+         * Called after the cells of each response have been delivered.
+         */
+        void onProgress(TableWalker walker);
+    }
+
+    private final Snmp snmp;
+    private final Target target;
+    private final OID[] scalars;
+    private final OID[] columns;
+    private final OID[] next;
+    private final boolean[] done;
+    private final List<List<VariableBinding>> columnBindings;
+    private final List<VariableBinding> scalarBindings = new ArrayList<>();
+    private final SettableFuture<List<List<VariableBinding>>> future = SettableFuture.create();
+    private Listener listener;
+    private DeviceProfile profile;
+    private RequestPolicy policy = RequestPolicy.DEFAULT;
+    private RequestGate gate;
+    private int attempt;
+    private int resumes;
+    private boolean received;
+    private boolean complete = true;
+
+    /** Columns of the request in flight, in varbind order. */
+    private int[] requested;
+    private int repetitions;
+    private int nonRepeaters;
+    private boolean first = true;
+
+    public TableWalker(Snmp snmp, Target target, List<OID> columns) {
+        this(snmp, target, new ArrayList<OID>(), columns);
+    }
+
+    public TableWalker(Snmp snmp, Target target, List<OID> scalars, List<OID> columns) {
+        this.snmp = snmp;
+        this.target = target;
+        this.scalars = scalars.toArray(new OID[scalars.size()]);
+        this.columns = columns.toArray(new OID[columns.size()]);
+        this.next = columns.toArray(new OID[columns.size()]);
+        this.done = new boolean[this.columns.length];
+        this.columnBindings = new ArrayList<>(this.columns.length);
+        for (int i = 0; i < this.columns.length; i++) {
+            columnBindings.add(new ArrayList<VariableBinding>());
+        }
+    }
+
+    /**
+     * Stream cells to a listener instead of collecting them. Must be set
+     * before the walk is started.
+     */
+    public TableWalker setListener(Listener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * Size requests to, and record responses in, the profile of the device.
+     * Must be set before the walk is started.
+     */
+    public TableWalker setProfile(DeviceProfile profile) {
+        this.profile = profile;
+        return this;
+    }
+
+    /**
+     * Timeout and retries of each request. Must be set before the walk is
+     * started.
+     */
+    public TableWalker setPolicy(RequestPolicy policy) {
+        if (policy != null) {
+            this.policy = policy;
+        }
+        return this;
+    }
+
+    /**
+     * Send the requests through the gate of the device, so they wait their
+     * turn behind other walks of it. Must be set before the walk is started.
+     */
+    public TableWalker setGate(RequestGate gate) {
+        this.gate = gate;
+        return this;
+    }
+
+    /**
+     * Start the walk.
+     *
+     * @return the bindings of each column, in the order the columns were given;
+     *         the lists are empty when a listener is set
+     */
+    public ListenableFuture<List<List<VariableBinding>>> walk() {
+        if (target == null) {
+            future.setException(new IOException("No target address"));
+            return future;
+        }
+        try {
+            policy.apply(target, attempt);
+            sendRequest();
+        } catch (IOException e) {
+            LOG.warn("Exception when sending GETBULK request", e);
+            future.setException(e);
+        }
+        return future;
+    }
+
+    /**
+     * Scalar values fetched as non-repeaters; valid once the walk completes.
+     */
+    public List<VariableBinding> getScalars() {
+        return scalarBindings;
+    }
+
+    /**
+     * False if the walk ended early because the device stopped answering or
+     * returned an error; valid once the walk completes.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public int getColumnCount() {
+        return columns.length;
+    }
+
+    /**
+     * Whether a column has left its subtree.
+     */
+    public boolean isDone(int column) {
+        return done[column];
+    }
+
+    /**
+     * The OID of the last cell received for a column, or the column OID
+     * itself if none has been received yet.
+     */
+    public OID getPosition(int column) {
+        return next[column];
+    }
+
+    public OID getColumn(int column) {
+        return columns[column];
+    }
+
+    /*
+     * Size max-repetitions so that a full response for the active columns
+     * stays within a single UDP datagram.
+     */
+    static int maxRepetitions(int nonRepeaters, int repeaters) {
+        int budget = SnmpSettings.MAX_PDU_SIZE - SnmpSettings.PDU_OVERHEAD
+                - nonRepeaters * SnmpSettings.VARBIND_SIZE;
+        int repetitions = budget / (Math.max(1, repeaters) * SnmpSettings.VARBIND_SIZE);
+        return Math.max(1, Math.min(SnmpSettings.MAXREPETITIONS, repetitions));
+    }
+
+    private void sendRequest() throws IOException {
+        int active = 0;
+        for (boolean d : done) {
+            if (!d) {
+                active++;
+            }
+        }
+
+        PDU pdu = DefaultPDUFactory.createPDU(target, PDU.GETBULK);
+        nonRepeaters = first ? scalars.length : 0;
+        if (first) {
+            for (OID scalar : scalars) {
+                pdu.add(new VariableBinding(scalar));
+            }
+        }
+        requested = new int[active];
+        int j = 0;
+        for (int i = 0; i < columns.length; i++) {
+            if (!done[i]) {
+                requested[j++] = i;
+                pdu.add(new VariableBinding(next[i]));
+            }
+        }
+        repetitions = profile != null
+                ? profile.maxRepetitions(nonRepeaters, active)
+                : maxRepetitions(nonRepeaters, active);
+        pdu.setNonRepeaters(nonRepeaters);
+        pdu.setMaxRepetitions(repetitions);
+
+        if (gate != null) {
+            gate.send(snmp, pdu, target, this);
+        } else {
+            snmp.send(pdu, target, null, this);
+        }
+    }
+
+    @Override
+    public void onResponse(ResponseEvent responseEvent) {
+        try {
+            // acknowledge receipt of the event
+            ((Snmp) responseEvent.getSource()).cancel(responseEvent.getRequest(), this);
+
+            PDU response = responseEvent.getResponse();
+            if (response == null) {
+                // A timeout says whether the device is reachable, not how large a response it can build,
+                // so it leaves the profile alone; so does a request that could not be sent at all
+                if (attempt < policy.getRetries() && resumes < MAX_RESUMES) {
+                    attempt++;
+                    resumes++;
+                    LOG.debug("Request to {} timed out, attempt {} of {}", target.getAddress(), attempt,
+                            policy.getRetries());
+                    policy.apply(target, attempt);
+                    sendRequest();
+                    return;
+                }
+                if (received) {
+                    LOG.warn("Walk of {} stopped due to timeout; results are incomplete", target.getAddress());
+                    complete = false;
+                    setResult();
+                    return;
+                }
+                throw new TimeoutException("Stopped due to timeout; results will be incomplete. Request: "
+                        + responseEvent.getRequest());
+            }
+            if (response.getType() == PDU.REPORT) {
+                // SNMPv3 rejected the request, e.g. unknown engine or wrong keys
+                throw new IOException("Report from " + target.getAddress() + ": " + response.getVariableBindings());
+            }
+            if (attempt > 0) {
+                attempt = 0;
+                policy.apply(target, attempt);
+            }
+            if (response.getErrorStatus() == PDU.tooBig && profile != null && repetitions > 1) {
+                LOG.debug("tooBig for {} repetitions of {} columns, retrying with fewer",
+                        repetitions, requested.length);
+                profile.failure(repetitions * requested.length);
+                sendRequest();
+                return;
+            }
+            if (response.getErrorStatus() != PDU.noError) {
+                LOG.error("Error: " + response.getErrorStatusText());
+                complete = false;
+                setResult();
+                return;
+            }
+
+            boolean progress = consume(response);
+            if (listener != null) {
+                listener.onProgress(this);
+            }
+            boolean more = progress && hasActiveColumns();
+            if (profile != null) {
+                int asked = repetitions * requested.length;
+                int returned = Math.max(0, response.size() - nonRepeaters);
+                profile.success(asked, returned, response.getBERLength(), more && returned < asked);
+            }
+            if (more) {
+                sendRequest();
+            } else {
+                setResult();
+            }
+        } catch (Throwable e) {
+            future.setException(e);
+        }
+    }
+
+    /*
+     * Distribute the interleaved varbinds of a response over the requested
+     * columns, retiring each column as soon as it leaves its subtree.
+     */
+    private boolean consume(PDU response) {
+        List<? extends VariableBinding> bindings = response.getVariableBindings();
+        int offset = 0;
+        if (first) {
+            offset = Math.min(scalars.length, bindings.size());
+            for (int i = 0; i < offset; i++) {
+                VariableBinding binding = bindings.get(i);
+                if (!binding.isException()) {
+                    scalarBindings.add(binding);
+                }
+            }
+            first = false;
+        }
+
+        boolean progress = false;
+        int width = requested.length;
+        if (width == 0) {
+            return false;
+        }
+        for (int k = offset; k < bindings.size(); k++) {
+            int column = requested[(k - offset) % width];
+            if (done[column]) {
+                continue;
+            }
+
+            VariableBinding binding = bindings.get(k);
+            OID oid = binding.getOid();
+            if (binding.isException() || oid == null
+                    || !oid.startsWith(columns[column])
+                    || oid.compareTo(next[column]) <= 0) {
+                done[column] = true;
+                continue;
+            }
+            if (listener != null) {
+                listener.onCell(column, binding);
+            } else {
+                columnBindings.get(column).add(binding);
+            }
+            next[column] = oid;
+            progress = true;
+            received = true;
+        }
+        return progress;
+    }
+
+    private boolean hasActiveColumns() {
+        for (boolean d : done) {
+            if (!d) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void setResult() {
+        LOG.debug("Walk of {} columns complete", columns.length);
+        future.set(columnBindings);
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2014, 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package net.donaldh.snmp;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.snmp4j.Snmp;
+import org.snmp4j.Target;
+import org.snmp4j.security.USM;
+import org.snmp4j.smi.Address;
+import org.snmp4j.smi.OctetString;
+
+/**
+ * The authoritative engine ID of each SNMPv3 device, discovered once. When an
+ * engine is discovered its user is added to the USM with keys localised to
+ * that engine, so later requests neither repeat discovery nor derive keys
+ * from the passphrases again.
+ */
+public class UsmEngines {
+    private static final Logger LOG = LoggerFactory.getLogger(UsmEngines.class);
+
+    private final USM usm;
+    private final Map<Address, Engine> engines = new ConcurrentHashMap<>();
+
+    private static final class Engine {
+        final OctetString engineID;
+        final SnmpCredentials credentials;
+
+        Engine(OctetString engineID, SnmpCredentials credentials) {
+            this.engineID = engineID;
+            this.credentials = credentials;
+        }
+    }
+
+    UsmEngines(USM usm) {
+        this.usm = usm;
+    }
+
+    /**
+     * Whether requests to a target can go out without discovery first.
+     */
+    public boolean isReady(Target target, SnmpCredentials credentials) {
+        if (!credentials.isUsm()) {
+            return true;
+        }
+        Engine engine = engines.get(target.getAddress());
+        return engine != null && engine.credentials.equals(credentials);
+    }
+
+    /**
+     * Discover the engine of a device and localise its user's keys. Blocks for
+     * one round trip, so it must not be called on an SNMP dispatcher thread.
+     *
+     * @param timeout how long to wait for the device in milliseconds
+     */
+    public void discover(Snmp snmp, Target target, SnmpCredentials credentials, long timeout) throws IOException {
+        invalidate(target);
+        byte[] id = snmp.discoverAuthoritativeEngineID(target.getAddress(), timeout);
+        if (id == null || id.length == 0) {
+            throw new IOException("No SNMPv3 engine ID from " + target.getAddress());
+        }
+        OctetString engineID = new OctetString(id);
+        usm.addUser(credentials.getSecurityName(), engineID, credentials.toUsmUser());
+        engines.put(target.getAddress(), new Engine(engineID, credentials));
+        LOG.info("Discovered SNMPv3 engine {} at {}", engineID.toHexString(), target.getAddress());
+    }
+
+    /**
+     * Forget a device's engine, e.g. after it rejected a request, so that it
+     * is discovered again before the next one.
+     */
+    public void invalidate(Target target) {
+        Engine engine = engines.remove(target.getAddress());
+        if (engine != null) {
+            usm.removeUser(engine.engineID, engine.credentials.getSecurityName());
+        }
+    }
+}
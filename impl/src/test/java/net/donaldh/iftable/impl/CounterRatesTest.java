@@ -0,0 +1,174 @@
+/*
+ * Copyright © 2016 Cisco Systems Inc and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package net.donaldh.iftable.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opendaylight.yang.gen.v1.urn.ietf.params.xml.ns.yang.ietf.yang.types.rev130715.Counter32;
+import org.opendaylight.yang.gen.v1.urn.ietf.params.xml.ns.yang.ietf.yang.types.rev130715.Counter64;
+import org.opendaylight.yang.gen.v1.urn.ietf.params.xml.ns.yang.ietf.yang.types.rev130715.Timestamp;
+import org.opendaylight.yang.gen.v1.urn.ietf.params.xml.ns.yang.smiv2._if.mib.rev000614.IfEntry1Builder;
+import org.opendaylight.yang.gen.v1.urn.ietf.params.xml.ns.yang.smiv2._if.mib.rev000614.interfaces.group.IfEntryBuilder;
+
+import net.donaldh.snmp.MibColumn;
+import net.donaldh.snmp.MibColumns;
+
+public class CounterRatesTest {
+
+    private static final double DELTA = 1e-9;
+    private static final BigInteger TWO_TO_63 = BigInteger.ONE.shiftLeft(63);
+
+    private final MibColumn inOctets = column(IfEntryBuilder.class, "IfInOctets");
+    private final MibColumn descr = column(IfEntryBuilder.class, "IfDescr");
+    private final MibColumn hcInOctets = column(IfEntry1Builder.class, "IfHCInOctets");
+    private final MibColumn discontinuityTime = column(IfEntry1Builder.class, "IfCounterDiscontinuityTime");
+
+    private CounterRates rates;
+
+    @Before
+    public void setUp() {
+        rates = new CounterRates();
+    }
+
+    @Test
+    public void firstSampleHasNoRate() {
+        CounterRates.RowRates first = sample32(1, 1000, 5000);
+        assertTrue(Double.isNaN(first.get(inOctets)));
+    }
+
+    @Test
+    public void rateIsPerSecondOfSysUpTime() {
+        sample32(1, 1000, 5000);
+        rates.commit(true);
+        // 1000 octets over 1000 timeticks, i.e. 10 seconds
+        assertEquals(100.0, sample32(1, 2000, 6000).get(inOctets), DELTA);
+    }
+
+    @Test
+    public void counter32AllowsOneWrap() {
+        sample32(1, 100, 0xffffff00L);
+        rates.commit(true);
+        assertEquals(512.0, sample32(1, 200, 0x100L).get(inOctets), DELTA);
+    }
+
+    @Test
+    public void counter64IsUnsigned() {
+        sample64(1, 100, TWO_TO_63.add(BigInteger.TEN));
+        rates.commit(true);
+        assertEquals(100.0, sample64(1, 200, TWO_TO_63.add(BigInteger.valueOf(110))).get(hcInOctets), DELTA);
+    }
+
+    @Test
+    public void counter64GoingBackwardsIsAReset() {
+        sample64(1, 100, BigInteger.valueOf(5000));
+        rates.commit(true);
+        assertTrue(Double.isNaN(sample64(1, 200, BigInteger.valueOf(10)).get(hcInOctets)));
+        rates.commit(true);
+        // The reset sample is the new baseline
+        assertEquals(10.0, sample64(1, 300, BigInteger.valueOf(20)).get(hcInOctets), DELTA);
+    }
+
+    @Test
+    public void agentRestartHasNoRate() {
+        sample32(1, 5000, 1000);
+        rates.commit(true);
+        assertTrue(Double.isNaN(sample32(1, 100, 1200).get(inOctets)));
+        rates.commit(true);
+        assertEquals(200.0, sample32(1, 200, 1400).get(inOctets), DELTA);
+    }
+
+    @Test
+    public void discontinuityHasNoRate() {
+        sampleWithDiscontinuity(1, 100, 1000, 0);
+        rates.commit(true);
+        assertTrue(Double.isNaN(sampleWithDiscontinuity(1, 200, 1100, 150).get(inOctets)));
+        rates.commit(true);
+        assertEquals(100.0, sampleWithDiscontinuity(1, 300, 1200, 150).get(inOctets), DELTA);
+    }
+
+    @Test
+    public void interfacesHaveTheirOwnBaseline() {
+        sample32(1, 100, 1000);
+        sample32(2, 100, 50000);
+        rates.commit(true);
+        assertEquals(1000.0, sample32(1, 200, 2000).get(inOctets), DELTA);
+        assertEquals(500.0, sample32(2, 200, 50500).get(inOctets), DELTA);
+    }
+
+    @Test
+    public void abortKeepsPreviousBaseline() {
+        sample32(1, 100, 1000);
+        rates.commit(true);
+        sample32(1, 200, 9000);
+        rates.abort();
+        assertEquals(500.0, sample32(1, 300, 2000).get(inOctets), DELTA);
+    }
+
+    @Test
+    public void incompleteCommitKeepsRowsNotReached() {
+        sample32(1, 100, 1000);
+        sample32(2, 100, 1000);
+        rates.commit(true);
+        sample32(1, 200, 2000);
+        rates.commit(false);
+        assertEquals(500.0, sample32(2, 300, 2000).get(inOctets), DELTA);
+    }
+
+    @Test
+    public void completeCommitForgetsRowsNotSeen() {
+        sample32(1, 100, 1000);
+        sample32(2, 100, 1000);
+        rates.commit(true);
+        sample32(1, 200, 2000);
+        rates.commit(true);
+        assertTrue(Double.isNaN(sample32(2, 300, 2000).get(inOctets)));
+    }
+
+    @Test
+    public void onlyCountersHaveRates() {
+        rates.begin();
+        rates.collect(descr, "eth0");
+        rates.collect(inOctets, new Counter32(1000L));
+        CounterRates.RowRates row = rates.end(1, 100);
+        assertTrue(Double.isNaN(row.get(descr)));
+    }
+
+    private CounterRates.RowRates sample32(int ifIndex, long upTime, long inOctetsValue) {
+        rates.begin();
+        rates.collect(inOctets, new Counter32(inOctetsValue));
+        return rates.end(ifIndex, upTime);
+    }
+
+    private CounterRates.RowRates sample64(int ifIndex, long upTime, BigInteger hcInOctetsValue) {
+        rates.begin();
+        rates.collect(hcInOctets, new Counter64(hcInOctetsValue));
+        return rates.end(ifIndex, upTime);
+    }
+
+    private CounterRates.RowRates sampleWithDiscontinuity(int ifIndex, long upTime, long inOctetsValue,
+            long discontinuity) {
+        rates.begin();
+        rates.collect(inOctets, new Counter32(inOctetsValue));
+        rates.collect(discontinuityTime, new Timestamp(discontinuity));
+        return rates.end(ifIndex, upTime);
+    }
+
+    private static MibColumn column(Class<?> builderClass, String name) {
+        for (MibColumn column : MibColumns.forClass(builderClass).getColumns()) {
+            if (column.getName().equals(name)) {
+                return column;
+            }
+        }
+        throw new IllegalArgumentException("No column " + name + " in " + builderClass.getSimpleName());
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright © 2016 Cisco Systems Inc and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package net.donaldh.iftable.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+public class PollSchedulerTest {
+
+    // Long enough that the timer does not poll on its own during a test
+    private static final long INTERVAL = TimeUnit.DAYS.toSeconds(1);
+
+    private PollScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        scheduler = new PollScheduler(2, 16);
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.close();
+    }
+
+    @Test
+    public void unknownNodeIsNotPolled() {
+        assertNull(scheduler.pollNow("node", new BlockingPoll()));
+    }
+
+    @Test
+    public void pollInProgressIsShared() throws Exception {
+        BlockingPoll poll = new BlockingPoll();
+        scheduler.schedule("node", poll, INTERVAL);
+
+        ListenableFuture<Void> first = scheduler.pollNow("node", poll);
+        poll.awaitStarted();
+        ListenableFuture<Void> second = scheduler.pollNow("node", poll);
+
+        assertSame(first, second);
+        assertEquals(1, poll.starts.get());
+        poll.finish();
+        first.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void triggerDuringPollIsIgnored() throws Exception {
+        BlockingPoll poll = new BlockingPoll();
+        scheduler.schedule("node", poll, INTERVAL);
+        scheduler.trigger("node");
+        poll.awaitStarted();
+
+        scheduler.trigger("node");
+        scheduler.trigger("unknown");
+
+        assertEquals(1, poll.starts.get());
+    }
+
+    @Test
+    public void rescheduledNodeWaitsForPollInProgress() throws Exception {
+        BlockingPoll old = new BlockingPoll();
+        scheduler.schedule("node", old, INTERVAL);
+        ListenableFuture<Void> running = scheduler.pollNow("node", old);
+        old.awaitStarted();
+
+        BlockingPoll replacement = new BlockingPoll();
+        scheduler.schedule("node", replacement, INTERVAL);
+
+        assertSame(running, scheduler.pollNow("node", replacement));
+        assertEquals(0, replacement.starts.get());
+    }
+
+    @Test
+    public void readdedNodeWaitsForPollInProgress() throws Exception {
+        BlockingPoll old = new BlockingPoll();
+        scheduler.schedule("node", old, INTERVAL);
+        ListenableFuture<Void> running = scheduler.pollNow("node", old);
+        old.awaitStarted();
+
+        // What IfTableCollectorProvider.addNode does for a node it already collects
+        scheduler.cancel("node");
+        BlockingPoll replacement = new BlockingPoll();
+        scheduler.schedule("node", replacement, INTERVAL);
+
+        assertSame(running, scheduler.pollNow("node", replacement));
+        assertEquals(0, replacement.starts.get());
+
+        old.finish();
+        running.get(10, TimeUnit.SECONDS);
+        ListenableFuture<Void> next = scheduler.pollNow("node", replacement);
+        assertNotSame(running, next);
+        replacement.awaitStarted();
+        assertEquals(1, replacement.starts.get());
+    }
+
+    @Test
+    public void readdedIdleNodeIsPolledRightAway() throws Exception {
+        BlockingPoll old = new BlockingPoll();
+        scheduler.schedule("node", old, INTERVAL);
+        ListenableFuture<Void> running = scheduler.pollNow("node", old);
+        old.awaitStarted();
+        old.finish();
+        running.get(10, TimeUnit.SECONDS);
+
+        scheduler.cancel("node");
+        BlockingPoll replacement = new BlockingPoll();
+        scheduler.schedule("node", replacement, INTERVAL);
+
+        scheduler.pollNow("node", replacement);
+        replacement.awaitStarted();
+        assertEquals(1, replacement.starts.get());
+    }
+
+    /*
+     * A poll that stays in progress until it is finished by the test.
+     */
+    private static final class BlockingPoll implements PollScheduler.Poll {
+        final AtomicInteger starts = new AtomicInteger();
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final SettableFuture<Void> result = SettableFuture.create();
+
+        @Override
+        public ListenableFuture<?> start() {
+            starts.incrementAndGet();
+            started.countDown();
+            return result;
+        }
+
+        void awaitStarted() throws InterruptedException {
+            assertTrue("Poll was not started", started.await(10, TimeUnit.SECONDS));
+        }
+
+        void finish() {
+            result.set(null);
+        }
+    }
+}
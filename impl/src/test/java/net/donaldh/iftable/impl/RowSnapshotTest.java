@@ -0,0 +1,103 @@
+/*
+ * Copyright © 2016 Cisco Systems Inc and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package net.donaldh.iftable.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import net.donaldh.snmp.RowIndex;
+
+public class RowSnapshotTest {
+
+    // ifRcvAddressTable rows: ifIndex, then a length-prefixed MAC address
+    private static final RowIndex ADDRESS_1 = RowIndex.of(1, 6, 0, 17, 42, 1, 2, 3);
+    private static final RowIndex ADDRESS_2 = RowIndex.of(1, 6, 0, 17, 42, 1, 2, 4);
+
+    private final RowSnapshot snapshot = new RowSnapshot();
+
+    @Test
+    public void unchangedRowsAreNotReported() {
+        assertTrue(snapshot.update(RowIndex.of(1), 10));
+        assertTrue(snapshot.update(RowIndex.of(2, 1), 20));
+        snapshot.commit(true);
+
+        assertFalse(snapshot.update(RowIndex.of(1), 10));
+        assertFalse(snapshot.update(RowIndex.of(2, 1), 20));
+        assertTrue(snapshot.update(RowIndex.of(1, 2), 20));
+        assertTrue(snapshot.update(RowIndex.of(2, 1), 21));
+    }
+
+    @Test
+    public void wideIndexesAreKeptByIndex() {
+        assertTrue(snapshot.update(ADDRESS_1, 10));
+        assertTrue(snapshot.update(ADDRESS_2, 20));
+        snapshot.commit(true);
+
+        assertFalse(snapshot.update(ADDRESS_1, 10));
+        assertFalse(snapshot.update(ADDRESS_2, 20));
+        assertTrue(snapshot.update(ADDRESS_2, 21));
+    }
+
+    @Test
+    public void wideIndexDoesNotShadowPackedIndex() {
+        // A two-arc index that packs to the same long as the hash of a wide one
+        RowIndex packed = RowIndex.of((int) (ADDRESS_1.pack() >>> 32), (int) ADDRESS_1.pack());
+        assertEquals(ADDRESS_1.pack(), packed.pack());
+
+        assertTrue(snapshot.update(packed, 10));
+        assertTrue(snapshot.update(ADDRESS_1, 20));
+        snapshot.commit(true);
+
+        assertFalse(snapshot.update(packed, 10));
+        assertFalse(snapshot.update(ADDRESS_1, 20));
+    }
+
+    @Test
+    public void completePollForgetsRowsThatDisappeared() {
+        snapshot.update(RowIndex.of(1), 10);
+        snapshot.update(ADDRESS_1, 10);
+        snapshot.commit(true);
+
+        snapshot.commit(true);
+
+        assertTrue(snapshot.update(RowIndex.of(1), 10));
+        assertTrue(snapshot.update(ADDRESS_1, 10));
+    }
+
+    @Test
+    public void incompletePollKeepsRowsItDidNotReach() {
+        snapshot.update(RowIndex.of(1), 10);
+        snapshot.update(ADDRESS_1, 10);
+        snapshot.update(ADDRESS_2, 20);
+        snapshot.commit(true);
+
+        assertTrue(snapshot.update(ADDRESS_1, 11));
+        snapshot.commit(false);
+
+        assertFalse(snapshot.update(RowIndex.of(1), 10));
+        assertFalse(snapshot.update(ADDRESS_1, 11));
+        assertFalse(snapshot.update(ADDRESS_2, 20));
+    }
+
+    @Test
+    public void abortedPollLeavesPreviousState() {
+        snapshot.update(RowIndex.of(1), 10);
+        snapshot.update(ADDRESS_1, 10);
+        snapshot.commit(true);
+
+        snapshot.update(RowIndex.of(1), 11);
+        snapshot.update(ADDRESS_1, 11);
+        snapshot.abort();
+
+        assertFalse(snapshot.update(RowIndex.of(1), 10));
+        assertFalse(snapshot.update(ADDRESS_1, 10));
+    }
+}
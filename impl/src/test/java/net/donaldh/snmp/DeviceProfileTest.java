@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2014, 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package net.donaldh.snmp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class DeviceProfileTest {
+
+    private static final int MAX = Integer.MAX_VALUE;
+
+    private final DeviceProfile profile = new DeviceProfile();
+
+    @Test
+    public void startsWithInitialCells() {
+        assertEquals(DeviceProfile.INITIAL_CELLS, profile.getCells());
+        assertEquals(DeviceProfile.INITIAL_CELLS, profile.maxRepetitions(0, 1));
+        assertEquals(DeviceProfile.INITIAL_CELLS / 4, profile.maxRepetitions(0, 4));
+    }
+
+    @Test
+    public void completeResponsesDoubleTheLimit() {
+        complete(256);
+        assertEquals(512, profile.getCells());
+        complete(512);
+        assertEquals(1024, profile.getCells());
+    }
+
+    @Test
+    public void smallRequestsDoNotGrowTheLimit() {
+        complete(100);
+        assertEquals(256, profile.getCells());
+    }
+
+    @Test
+    public void tooBigSetsCeilingAndHalves() {
+        profile.failure(256);
+        assertEquals(128, profile.getCells());
+        assertState(128, 256);
+
+        // Growth is by a quarter now, and stops short of the size that failed
+        complete(128);
+        assertEquals(161, profile.getCells());
+        for (int i = 0; i < 10; i++) {
+            complete(profile.getCells());
+        }
+        assertEquals(255, profile.getCells());
+    }
+
+    @Test
+    public void ceilingIsRelaxedAfterRunOfSuccesses() {
+        profile.failure(256);
+        for (int i = 1; i < DeviceProfile.CEILING_PROBE_SUCCESSES; i++) {
+            complete(1);
+        }
+        assertState(128, 256);
+
+        complete(1);
+        assertState(128, 256 + 256 / 4 + 1);
+    }
+
+    @Test
+    public void failureRestartsTheRunOfSuccesses() {
+        profile.failure(256);
+        for (int i = 1; i < DeviceProfile.CEILING_PROBE_SUCCESSES; i++) {
+            complete(1);
+        }
+        profile.failure(256);
+        for (int i = 1; i < DeviceProfile.CEILING_PROBE_SUCCESSES; i++) {
+            complete(1);
+        }
+        assertState(128, 256);
+    }
+
+    @Test
+    public void truncatedResponseIsTheLimit() {
+        profile.success(256, 100, 100 * SnmpSettings.VARBIND_SIZE, true);
+        assertState(100, 101);
+        assertEquals(100, profile.maxRepetitions(0, 1));
+    }
+
+    @Test
+    public void varbindSizeFollowsResponses() {
+        profile.success(10, 10, 1000, false);
+        // (48 * 3 + 100) / 4
+        assertEquals("256," + MAX + ",61", profile.toString());
+    }
+
+    @Test
+    public void repetitionsStayWithinDatagramAndBounds() {
+        DeviceProfile large = new DeviceProfile(1000000, MAX, 1000);
+        int budget = SnmpSettings.MAX_PDU_SIZE - SnmpSettings.PDU_OVERHEAD;
+        assertEquals(budget / 1000, large.maxRepetitions(0, 1));
+        assertEquals((budget - 2 * 1000) / (4 * 1000), large.maxRepetitions(2, 4));
+
+        DeviceProfile small = new DeviceProfile(1000000, MAX, DeviceProfile.MIN_VARBIND_SIZE);
+        assertEquals(SnmpSettings.MAXREPETITIONS, small.maxRepetitions(0, 1));
+
+        assertEquals(1, new DeviceProfile(1, 2, 48).maxRepetitions(0, 10));
+    }
+
+    @Test
+    public void limitsNeverDropBelowOne() {
+        profile.failure(1);
+        assertState(1, 2);
+        assertEquals(1, profile.maxRepetitions(0, 1));
+    }
+
+    @Test
+    public void parsesItsOwnForm() {
+        profile.failure(200);
+        profile.success(10, 10, 640, false);
+
+        DeviceProfile parsed = DeviceProfile.parse(profile.toString());
+        assertEquals(profile.toString(), parsed.toString());
+    }
+
+    @Test
+    public void parseClampsValues() {
+        assertEquals("1,2," + DeviceProfile.MIN_VARBIND_SIZE, DeviceProfile.parse(" 0,0,0 ").toString());
+    }
+
+    @Test
+    public void parseRejectsOtherText() {
+        assertNull(DeviceProfile.parse(""));
+        assertNull(DeviceProfile.parse("1,2"));
+        assertNull(DeviceProfile.parse("1,2,3,4"));
+        assertNull(DeviceProfile.parse("a,b,c"));
+        assertTrue(DeviceProfile.parse("1,2,3") != null);
+    }
+
+    /*
+     * A complete response to a request for the given number of varbinds.
+     */
+    private void complete(int cells) {
+        profile.success(cells, cells, cells * SnmpSettings.VARBIND_SIZE, false);
+    }
+
+    private void assertState(int cells, int ceiling) {
+        assertEquals(cells + "," + ceiling + "," + SnmpSettings.VARBIND_SIZE, profile.toString());
+    }
+}
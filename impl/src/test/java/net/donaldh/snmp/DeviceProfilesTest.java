@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2014, 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package net.donaldh.snmp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DeviceProfilesTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void sameProfileForSameAddress() {
+        DeviceProfiles profiles = new DeviceProfiles(null);
+
+        assertSame(profiles.get("192.0.2.1"), profiles.get("192.0.2.1"));
+        assertNotSame(profiles.get("192.0.2.1"), profiles.get("192.0.2.2"));
+    }
+
+    @Test
+    public void savedProfilesAreLoadedAgain() throws IOException {
+        File file = new File(folder.getRoot(), "data/if-table-collector/device-profiles.properties");
+        DeviceProfiles profiles = new DeviceProfiles(file);
+        DeviceProfile learned = profiles.get("192.0.2.1");
+        learned.failure(200);
+        learned.success(10, 10, 640, false);
+        profiles.get("192.0.2.2");
+        profiles.save();
+
+        assertTrue(file.isFile());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+        DeviceProfiles loaded = new DeviceProfiles(file);
+        assertEquals(learned.toString(), loaded.get("192.0.2.1").toString());
+        assertEquals(new DeviceProfile().toString(), loaded.get("192.0.2.2").toString());
+    }
+
+    @Test
+    public void saveReplacesPreviousFile() throws IOException {
+        File file = folder.newFile("profiles.properties");
+        DeviceProfiles profiles = new DeviceProfiles(file);
+        profiles.get("192.0.2.1").failure(100);
+        profiles.save();
+        profiles.get("192.0.2.1").failure(10);
+        profiles.save();
+
+        assertEquals(5, new DeviceProfiles(file).get("192.0.2.1").getCells());
+    }
+
+    @Test
+    public void unreadableEntriesAreIgnored() throws IOException {
+        File file = folder.newFile("profiles.properties");
+        Properties properties = new Properties();
+        properties.setProperty("192.0.2.1", "garbage");
+        properties.setProperty("192.0.2.2", "64,128,40");
+        try (OutputStream out = new FileOutputStream(file)) {
+            properties.store(out, null);
+        }
+
+        DeviceProfiles profiles = new DeviceProfiles(file);
+        assertEquals(new DeviceProfile().toString(), profiles.get("192.0.2.1").toString());
+        assertEquals("64,128,40", profiles.get("192.0.2.2").toString());
+    }
+
+    @Test
+    public void withoutFileSaveDoesNothing() {
+        DeviceProfiles profiles = new DeviceProfiles(null);
+        profiles.get("192.0.2.1").failure(100);
+        profiles.save();
+    }
+}
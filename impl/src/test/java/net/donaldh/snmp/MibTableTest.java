@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2014, 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package net.donaldh.snmp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.same;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.opendaylight.yang.gen.v1.urn.ietf.params.xml.ns.yang.smiv2._if.mib.rev000614.ifmibobjects.group.IfRcvAddressEntryBuilder;
+import org.snmp4j.CommunityTarget;
+import org.snmp4j.PDU;
+import org.snmp4j.Snmp;
+import org.snmp4j.event.ResponseEvent;
+import org.snmp4j.event.ResponseListener;
+import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.smi.Integer32;
+import org.snmp4j.smi.Null;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.UdpAddress;
+import org.snmp4j.smi.VariableBinding;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+public class MibTableTest {
+
+    // ifIndex 3, then the 6 octets of address 00:11:2a:01:02:03 preceded by their length
+    private static final int[] RCV_ADDRESS_INDEX = {3, 6, 0, 17, 42, 1, 2, 3};
+
+    private Snmp snmp;
+    private CommunityTarget target;
+
+    @Before
+    public void setUp() {
+        snmp = mock(Snmp.class);
+        target = new CommunityTarget(new UdpAddress("192.0.2.1/161"), new OctetString("public"));
+        target.setVersion(SnmpConstants.version2c);
+    }
+
+    @Test
+    public void indexColumnsAreDecodedFromMultiArcIndex() throws Exception {
+        final List<MibRow<IfRcvAddressEntryBuilder>> rows = new ArrayList<>();
+        ListenableFuture<MibTable.WalkResult> result =
+                new MibTable<>(snmp, target, IfRcvAddressEntryBuilder.class)
+                        .index("IfIndex", "IfRcvAddressAddress")
+                        .walk(new MibTable.RowCallback<IfRcvAddressEntryBuilder>() {
+
+                            @Override
+                            public void onRow(MibRow<IfRcvAddressEntryBuilder> row) {
+                                rows.add(row);
+                            }
+
+                        });
+
+        // Every walked column has a cell of the row, then leaves the table
+        PDU first = sent(1);
+        respond(first, RCV_ADDRESS_INDEX);
+        respond(sent(2), null);
+
+        assertTrue(result.isDone());
+        assertTrue(result.get().isComplete());
+        assertEquals(1, rows.size());
+        MibRow<IfRcvAddressEntryBuilder> row = rows.get(0);
+        assertEquals(RowIndex.of(RCV_ADDRESS_INDEX), row.getIndex());
+
+        IfRcvAddressEntryBuilder builder = row.getBuilder();
+        assertNotNull("ifIndex not decoded", builder.getIfIndex());
+        assertEquals(3, builder.getIfIndex().getValue().intValue());
+        assertNotNull("ifRcvAddressAddress not decoded", builder.getIfRcvAddressAddress());
+        assertEquals("00:11:2a:01:02:03", builder.getIfRcvAddressAddress().getValue());
+
+        // Index columns are published like any other
+        final Map<String, String> values = new HashMap<>();
+        row.forEachValue(new MibRow.ValueVisitor() {
+
+            @Override
+            public void visit(MibColumn column, Object value) {
+                values.put(column.getName(), column.format(value));
+            }
+
+        });
+        assertEquals("3", values.get("IfIndex"));
+        assertEquals("00:11:2a:01:02:03", values.get("IfRcvAddressAddress"));
+    }
+
+    @Test
+    public void indexColumnsResolveWithOrWithoutOid() {
+        MibColumns<IfRcvAddressEntryBuilder> columns = MibColumns.forClass(IfRcvAddressEntryBuilder.class);
+
+        assertNotNull(columns.getIndexColumn("ifIndex"));
+        assertNotNull(columns.getIndexColumn("IfRcvAddressAddress"));
+        assertNull(columns.getIndexColumn("IfRcvAddressNothing"));
+        for (MibColumn column : columns.getIndexOnlyColumns()) {
+            assertTrue(column.getName(), column.getBaseOID().size() == 0);
+        }
+    }
+
+    /*
+     * The last of the requests sent so far, of which there must be the
+     * given number.
+     */
+    private PDU sent(int count) throws IOException {
+        ArgumentCaptor<PDU> captor = ArgumentCaptor.forClass(PDU.class);
+        verify(snmp, times(count)).send(captor.capture(), same(target), any(), any(ResponseListener.class));
+        return captor.getAllValues().get(count - 1);
+    }
+
+    /*
+     * Answer every varbind of a request with a cell of the given row, or
+     * with endOfMibView if there is none.
+     */
+    private void respond(PDU request, int[] index) throws IOException {
+        ArgumentCaptor<ResponseListener> listener = ArgumentCaptor.forClass(ResponseListener.class);
+        verify(snmp, times(1)).send(same(request), same(target), any(), listener.capture());
+
+        PDU response = new PDU();
+        response.setType(PDU.RESPONSE);
+        for (VariableBinding binding : request.getVariableBindings()) {
+            if (index == null) {
+                response.add(new VariableBinding(binding.getOid(), Null.endOfMibView));
+                continue;
+            }
+            OID oid = new OID(binding.getOid());
+            for (int arc : index) {
+                oid.append(arc);
+            }
+            response.add(new VariableBinding(oid, new Integer32(1)));
+        }
+        listener.getValue().onResponse(new ResponseEvent(snmp, null, request, response, null));
+    }
+}
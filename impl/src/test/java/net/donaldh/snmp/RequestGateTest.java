@@ -0,0 +1,328 @@
+/*
+ * Copyright (c) 2014, 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package net.donaldh.snmp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.same;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.snmp4j.PDU;
+import org.snmp4j.Snmp;
+import org.snmp4j.Target;
+import org.snmp4j.event.ResponseEvent;
+import org.snmp4j.event.ResponseListener;
+
+import com.google.common.base.Supplier;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+public class RequestGateTest {
+
+    private Snmp snmp;
+    private Target target;
+    private PDU pdu;
+    private List<ResponseEvent> responses;
+    private ResponseListener listener;
+
+    @Before
+    public void setUp() {
+        snmp = mock(Snmp.class);
+        target = mock(Target.class);
+        pdu = new PDU();
+        responses = new ArrayList<>();
+        listener = new ResponseListener() {
+
+            @Override
+            public void onResponse(ResponseEvent event) {
+                responses.add(event);
+            }
+
+        };
+    }
+
+    @Test
+    public void limitCapsRequestsInFlight() throws IOException {
+        RequestGate gate = new RequestGate(2, 10);
+        gate.send(snmp, pdu, target, listener);
+        gate.send(snmp, pdu, target, listener);
+        gate.send(snmp, pdu, target, listener);
+
+        verify(snmp, times(2)).send(same(pdu), eq(target), any(), any(ResponseListener.class));
+        assertEquals(2, gate.getInFlight());
+        assertEquals(1, gate.getQueued());
+    }
+
+    @Test
+    public void noLimit() throws IOException {
+        RequestGate gate = new RequestGate(0, 0);
+        for (int i = 0; i < 5; i++) {
+            gate.send(snmp, pdu, target, listener);
+        }
+
+        verify(snmp, times(5)).send(same(pdu), eq(target), any(), any(ResponseListener.class));
+        assertEquals(5, gate.getInFlight());
+        assertEquals(0, gate.getQueued());
+    }
+
+    @Test
+    public void responseSendsNextQueued() throws IOException {
+        RequestGate gate = new RequestGate(1, 10);
+        gate.send(snmp, pdu, target, listener);
+        gate.send(snmp, pdu, target, listener);
+        List<ResponseListener> sent = sent(1);
+
+        ResponseEvent event = new ResponseEvent(snmp, null, pdu, new PDU(), null);
+        sent.get(0).onResponse(event);
+
+        sent(2);
+        assertEquals(1, responses.size());
+        assertSame(event, responses.get(0));
+        assertEquals(1, gate.getInFlight());
+        assertEquals(0, gate.getQueued());
+    }
+
+    @Test
+    public void timeoutSendsNextQueued() throws IOException {
+        RequestGate gate = new RequestGate(1, 10);
+        gate.send(snmp, pdu, target, listener);
+        gate.send(snmp, pdu, target, listener);
+
+        sent(1).get(0).onResponse(new ResponseEvent(snmp, null, pdu, null, null));
+
+        sent(2);
+        assertEquals(1, responses.size());
+        assertNull(responses.get(0).getResponse());
+        assertEquals(1, gate.getInFlight());
+        assertEquals(0, gate.getQueued());
+    }
+
+    @Test
+    public void queuedRequestsAreSentInOrder() throws IOException {
+        RequestGate gate = new RequestGate(1, 10);
+        PDU first = new PDU();
+        PDU second = new PDU();
+        gate.send(snmp, pdu, target, listener);
+        gate.send(snmp, first, target, listener);
+        gate.send(snmp, second, target, listener);
+
+        sent(1).get(0).onResponse(new ResponseEvent(snmp, null, pdu, new PDU(), null));
+        verify(snmp).send(same(first), eq(target), any(), any(ResponseListener.class));
+        verify(snmp, never()).send(same(second), eq(target), any(), any(ResponseListener.class));
+    }
+
+    @Test
+    public void repeatedResponseFreesOneSlot() throws IOException {
+        RequestGate gate = new RequestGate(1, 10);
+        gate.send(snmp, pdu, target, listener);
+        gate.send(snmp, pdu, target, listener);
+        gate.send(snmp, pdu, target, listener);
+
+        ResponseListener first = sent(1).get(0);
+        first.onResponse(new ResponseEvent(snmp, null, pdu, new PDU(), null));
+        first.onResponse(new ResponseEvent(snmp, null, pdu, null, null));
+
+        sent(2);
+        assertEquals(1, responses.size());
+        assertEquals(1, gate.getInFlight());
+        assertEquals(1, gate.getQueued());
+    }
+
+    @Test
+    public void excessRequestsFail() throws IOException {
+        RequestGate gate = new RequestGate(1, 2);
+        gate.send(snmp, pdu, target, listener);
+        gate.send(snmp, pdu, target, listener);
+        gate.send(snmp, pdu, target, listener);
+        try {
+            gate.send(snmp, pdu, target, listener);
+            fail("Request beyond the queue was accepted");
+        } catch (IOException e) {
+            // expected
+        }
+
+        assertEquals(1, gate.getInFlight());
+        assertEquals(2, gate.getQueued());
+
+        // Once the queue drains there is room again
+        sent(1).get(0).onResponse(new ResponseEvent(snmp, null, pdu, new PDU(), null));
+        gate.send(snmp, pdu, target, listener);
+        assertEquals(2, gate.getQueued());
+    }
+
+    @Test
+    public void failedSendFreesSlot() throws IOException {
+        RequestGate gate = new RequestGate(1, 10);
+        doThrow(new IOException("unreachable")).when(snmp)
+                .send(same(pdu), eq(target), any(), any(ResponseListener.class));
+        try {
+            gate.send(snmp, pdu, target, listener);
+            fail("Failed send was not reported");
+        } catch (IOException e) {
+            // expected
+        }
+
+        assertEquals(0, gate.getInFlight());
+    }
+
+    @Test
+    public void failedQueuedSendIsAnswered() throws IOException {
+        RequestGate gate = new RequestGate(1, 10);
+        PDU queued = new PDU();
+        gate.send(snmp, pdu, target, listener);
+        gate.send(snmp, queued, target, listener);
+        IOException failure = new IOException("unreachable");
+        doThrow(failure).when(snmp).send(same(queued), eq(target), any(), any(ResponseListener.class));
+
+        sent(1).get(0).onResponse(new ResponseEvent(snmp, null, pdu, new PDU(), null));
+
+        assertEquals(2, responses.size());
+        assertNull(responses.get(1).getResponse());
+        assertSame(failure, responses.get(1).getError());
+        assertEquals(0, gate.getInFlight());
+        assertEquals(0, gate.getQueued());
+    }
+
+    @Test
+    public void raisingLimitSendsQueued() throws IOException {
+        RequestGate gate = new RequestGate(1, 10);
+        gate.send(snmp, pdu, target, listener);
+        gate.send(snmp, pdu, target, listener);
+        gate.send(snmp, pdu, target, listener);
+
+        gate.setLimit(3);
+
+        sent(3);
+        assertEquals(3, gate.getInFlight());
+        assertEquals(0, gate.getQueued());
+    }
+
+    @Test
+    public void overlappingWalksShareOne() throws Exception {
+        RequestGate gate = new RequestGate(1, 10);
+        CountingWalk walk = new CountingWalk();
+
+        ListenableFuture<String> first = gate.share("1.3.6.1.2.1.2", walk);
+        ListenableFuture<String> second = gate.share("1.3.6.1.2.1.2", walk);
+        assertEquals(1, walk.started.size());
+        assertSame(first, second);
+
+        walk.started.get(0).set("done");
+        assertEquals("done", first.get());
+        assertEquals("done", second.get());
+    }
+
+    @Test
+    public void differentSubtreesWalkSeparately() {
+        RequestGate gate = new RequestGate(1, 10);
+        CountingWalk walk = new CountingWalk();
+
+        ListenableFuture<String> first = gate.share("1.3.6.1.2.1.2", walk);
+        ListenableFuture<String> second = gate.share("1.3.6.1.2.1.31", walk);
+        assertEquals(2, walk.started.size());
+        assertNotSame(first, second);
+    }
+
+    @Test
+    public void finishedWalkIsNotShared() {
+        RequestGate gate = new RequestGate(1, 10);
+        CountingWalk walk = new CountingWalk();
+
+        ListenableFuture<String> first = gate.share("1.3.6.1.2.1.2", walk);
+        walk.started.get(0).set("done");
+        ListenableFuture<String> second = gate.share("1.3.6.1.2.1.2", walk);
+        assertEquals(2, walk.started.size());
+        assertNotSame(first, second);
+        assertFalse(second.isDone());
+    }
+
+    @Test
+    public void failedWalkIsSharedAndForgotten() throws InterruptedException {
+        RequestGate gate = new RequestGate(1, 10);
+        CountingWalk walk = new CountingWalk();
+
+        ListenableFuture<String> first = gate.share("1.3.6.1.2.1.2", walk);
+        ListenableFuture<String> second = gate.share("1.3.6.1.2.1.2", walk);
+        IOException failure = new IOException("timeout");
+        walk.started.get(0).setException(failure);
+        try {
+            second.get();
+            fail("Failure of the shared walk was not reported");
+        } catch (ExecutionException e) {
+            assertSame(failure, e.getCause());
+        }
+        assertTrue(first.isDone());
+
+        gate.share("1.3.6.1.2.1.2", walk);
+        assertEquals(2, walk.started.size());
+    }
+
+    @Test
+    public void walkThatFailsToStartIsForgotten() {
+        RequestGate gate = new RequestGate(1, 10);
+        Supplier<ListenableFuture<String>> broken = new Supplier<ListenableFuture<String>>() {
+
+            @Override
+            public ListenableFuture<String> get() {
+                throw new IllegalStateException("no session");
+            }
+
+        };
+        try {
+            gate.share("1.3.6.1.2.1.2", broken);
+            fail("Failure to start the walk was not reported");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        CountingWalk walk = new CountingWalk();
+        gate.share("1.3.6.1.2.1.2", walk);
+        assertEquals(1, walk.started.size());
+    }
+
+    /*
+     * The listeners of the requests sent to the session so far, of which
+     * there must be the given number.
+     */
+    private List<ResponseListener> sent(int count) throws IOException {
+        ArgumentCaptor<ResponseListener> captor = ArgumentCaptor.forClass(ResponseListener.class);
+        verify(snmp, times(count)).send(any(PDU.class), eq(target), any(), captor.capture());
+        return captor.getAllValues();
+    }
+
+    private static final class CountingWalk implements Supplier<ListenableFuture<String>> {
+        final List<SettableFuture<String>> started = new ArrayList<>();
+
+        @Override
+        public ListenableFuture<String> get() {
+            SettableFuture<String> walk = SettableFuture.create();
+            started.add(walk);
+            return walk;
+        }
+    }
+}
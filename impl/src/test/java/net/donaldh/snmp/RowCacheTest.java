@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2014, 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package net.donaldh.snmp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class RowCacheTest {
+
+    private static final List<MibColumn> COLUMNS = Collections.emptyList();
+
+    private final RowCache cache = new RowCache(Collections.singletonList("IfDescr"));
+
+    @Test
+    public void completeRefreshReplacesRows() {
+        assertTrue(cache.isStale());
+
+        refresh(true);
+
+        assertFalse(cache.isStale());
+        assertTrue(cache.isValidFor(COLUMNS));
+        assertEquals(1, cache.size());
+        assertArrayEquals(new Object[] { "eth0" }, cache.get(RowIndex.of(1)));
+    }
+
+    @Test
+    public void incompleteRefreshKeepsPreviousRows() {
+        refresh(true);
+        cache.invalidate();
+
+        cache.begin();
+        cache.put(RowIndex.of(2), new Object[] { "eth1" });
+        cache.end(COLUMNS, false);
+
+        assertTrue(cache.isStale());
+        assertArrayEquals(new Object[] { "eth0" }, cache.get(RowIndex.of(1)));
+        assertNull(cache.get(RowIndex.of(2)));
+    }
+
+    @Test
+    public void invalidationDuringRefreshIsKept() {
+        cache.begin();
+        cache.put(RowIndex.of(1), new Object[] { "eth0" });
+        cache.invalidate();
+        cache.end(COLUMNS, true);
+
+        assertTrue(cache.isStale());
+        assertFalse(cache.isValidFor(COLUMNS));
+
+        // The next refresh starts after the invalidation and may clear it
+        refresh(true);
+        assertFalse(cache.isStale());
+    }
+
+    private void refresh(boolean complete) {
+        cache.begin();
+        cache.put(RowIndex.of(1), new Object[] { "eth0" });
+        cache.end(COLUMNS, complete);
+    }
+}
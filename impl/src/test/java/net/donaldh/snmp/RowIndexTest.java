@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2014, 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package net.donaldh.snmp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+import org.snmp4j.smi.OID;
+
+public class RowIndexTest {
+
+    @Test
+    public void singleArcPacksToItsValue() {
+        assertTrue(RowIndex.of(7).isPackExact());
+        assertEquals(7L, RowIndex.of(7).pack());
+        // Sub-identifiers are unsigned 32-bit values
+        assertEquals(0xFFFFFFFFL, RowIndex.of(-1).pack());
+    }
+
+    @Test
+    public void twoArcsPackIntoHalves() {
+        assertTrue(RowIndex.of(1, 2).isPackExact());
+        assertEquals(1L << 32 | 2, RowIndex.of(1, 2).pack());
+        assertEquals(0xFFFFFFFFFFFFFFFFL, RowIndex.of(-1, -1).pack());
+        assertNotEquals(RowIndex.of(1, 2).pack(), RowIndex.of(2, 1).pack());
+        assertNotEquals(RowIndex.of(0, 5).pack(), RowIndex.of(5).pack() << 32);
+    }
+
+    @Test
+    public void everyTwoArcIndexPacksDistinctly() {
+        Set<Long> packed = new HashSet<>();
+        for (int higher = 0; higher < 100; higher++) {
+            for (int lower = 0; lower < 100; lower++) {
+                assertTrue(packed.add(RowIndex.of(higher, lower).pack()));
+            }
+        }
+    }
+
+    @Test
+    public void longerIndexesAreHashed() {
+        RowIndex address = RowIndex.of(3, 6, 0, 17, 42, 1, 2, 3);
+
+        assertFalse(address.isPackExact());
+        assertEquals(address.pack(), RowIndex.of(3, 6, 0, 17, 42, 1, 2, 3).pack());
+        assertNotEquals(address.pack(), RowIndex.of(3, 6, 0, 17, 42, 1, 2, 4).pack());
+        assertNotEquals(address.pack(), RowIndex.of(4, 6, 0, 17, 42, 1, 2, 3).pack());
+        assertFalse(RowIndex.of(1, 2, 3).isPackExact());
+    }
+
+    @Test
+    public void indexIsTakenFromCellOid() {
+        OID cell = new OID("1.3.6.1.2.1.31.1.4.1.2.3.6.0.17.42.1.2.3");
+
+        RowIndex index = RowIndex.of(cell, 11);
+        assertEquals(RowIndex.of(3, 6, 0, 17, 42, 1, 2, 3), index);
+        assertEquals(8, index.size());
+        assertEquals(3, index.intValue());
+        assertEquals("3.6.0.17.42.1.2.3", index.toString());
+    }
+
+    @Test
+    public void orderIsUnsignedArcByArc() {
+        assertTrue(RowIndex.of(1, 2).compareTo(RowIndex.of(1, 3)) < 0);
+        assertTrue(RowIndex.of(2).compareTo(RowIndex.of(1, 9)) > 0);
+        assertTrue(RowIndex.of(1).compareTo(RowIndex.of(1, 0)) < 0);
+        assertTrue(RowIndex.of(-1).compareTo(RowIndex.of(1)) > 0);
+        assertEquals(0, RowIndex.of(4, 5).compareTo(RowIndex.of(4, 5)));
+        assertEquals("4294967295", RowIndex.of(-1).toString());
+    }
+}
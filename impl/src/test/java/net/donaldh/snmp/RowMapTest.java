@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2014, 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package net.donaldh.snmp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+import org.snmp4j.smi.OID;
+
+/*
+ * Single-arc indexes hash to 31 + arc, so with the initial 64 slots arcs that
+ * differ by a multiple of 64 share a home slot, arc 8 is at home in slot 39
+ * and arc 32 in the last slot.
+ */
+public class RowMapTest {
+
+    private static final OID COLUMN = new OID("1.3.6.1.2.1.2.2.1.2");
+
+    private final RowMap<String> map = new RowMap<>();
+
+    @Test
+    public void rowsAreFoundFromCellOids() {
+        put(1);
+        put(2);
+        map.put(RowIndex.of(1, 6, 0, 17, 42, 1, 2, 3), "address");
+
+        assertEquals(3, map.size());
+        assertEquals("1", get(1));
+        assertEquals("2", get(2));
+        assertEquals("address", map.get(cell(1, 6, 0, 17, 42, 1, 2, 3), COLUMN.size()));
+        assertNull(get(3));
+        assertNull(map.get(cell(1, 6, 0, 17, 42, 1, 2), COLUMN.size()));
+    }
+
+    @Test
+    public void putReplacesRow() {
+        put(1);
+        map.put(RowIndex.of(1), "again");
+
+        assertEquals(1, map.size());
+        assertEquals("again", get(1));
+    }
+
+    @Test
+    public void rowsAreKeptInTheOrderFirstSeen() {
+        put(5, 1, 3);
+
+        assertEquals(Arrays.asList(RowIndex.of(5), RowIndex.of(1), RowIndex.of(3)),
+                new ArrayList<>(map.toMap().keySet()));
+    }
+
+    @Test
+    public void removedRowsAreReturnedInIndexOrder() {
+        put(5, 1, 3, 4, 2);
+
+        assertEquals(Arrays.asList(1, 2), arcs(map.removeBefore(RowIndex.of(3))));
+        assertEquals(3, map.size());
+        assertNull(get(1));
+        assertNull(get(2));
+        assertEquals(Arrays.asList(RowIndex.of(5), RowIndex.of(3), RowIndex.of(4)),
+                new ArrayList<>(map.toMap().keySet()));
+    }
+
+    @Test
+    public void nullBoundRemovesAll() {
+        put(2, 1);
+
+        assertEquals(Arrays.asList(1, 2), arcs(map.removeBefore(null)));
+        assertEquals(0, map.size());
+        assertNull(get(1));
+        assertTrue(map.removeBefore(null).isEmpty());
+    }
+
+    @Test
+    public void removalInsideCluster() {
+        // 74 is at home in slot 41, then 8, 72 and 136 all want slot 39 and take 39, 40 and 42
+        put(74, 8, 72, 136);
+
+        assertEquals(Collections.singletonList(8), arcs(map.removeBefore(RowIndex.of(50))));
+
+        // 72 and 136 move back into the gap, 74 stays at home
+        assertNull(get(8));
+        assertEquals("72", get(72));
+        assertEquals("74", get(74));
+        assertEquals("136", get(136));
+        assertEquals(3, map.size());
+    }
+
+    @Test
+    public void removalWrapsAroundTheTableEnd() {
+        // 32, 96 and 160 want the last slot and take 63, 0 and 1; 33 wants slot 0 and takes 2
+        put(32, 96, 160, 33);
+
+        assertEquals(Collections.singletonList(32), arcs(map.removeBefore(RowIndex.of(33))));
+
+        assertNull(get(32));
+        assertEquals("96", get(96));
+        assertEquals("160", get(160));
+        assertEquals("33", get(33));
+    }
+
+    @Test
+    public void removalAfterGrowing() {
+        // 300 rows take 1024 slots, where arcs that differ by 1024 share a home slot
+        for (int arc = 1; arc <= 100; arc++) {
+            put(arc, arc + 1024, arc + 2048);
+        }
+
+        List<Map.Entry<RowIndex, String>> removed = map.removeBefore(RowIndex.of(1025));
+        assertEquals(100, removed.size());
+        assertEquals(200, map.size());
+        for (int arc = 1; arc <= 100; arc++) {
+            assertNull(get(arc));
+            assertEquals(String.valueOf(arc + 1024), get(arc + 1024));
+            assertEquals(String.valueOf(arc + 2048), get(arc + 2048));
+        }
+
+        // Removed rows can come back
+        put(1);
+        assertEquals("1", get(1));
+    }
+
+    @Test
+    public void matchesSortedMap() {
+        Random random = new Random(1);
+        TreeMap<RowIndex, String> expected = new TreeMap<>();
+        for (int step = 0; step < 2000; step++) {
+            for (int n = random.nextInt(40); n > 0; n--) {
+                int[] index = {random.nextInt(500), random.nextInt(3)};
+                RowIndex key = RowIndex.of(index);
+                if (!expected.containsKey(key)) {
+                    String row = Arrays.toString(index);
+                    map.put(key, row);
+                    expected.put(key, row);
+                }
+            }
+            RowIndex bound = random.nextInt(10) == 0 ? null : RowIndex.of(random.nextInt(500), random.nextInt(3));
+            Map<RowIndex, String> before = bound != null
+                    ? new TreeMap<>(expected.headMap(bound)) : new TreeMap<>(expected);
+
+            assertEquals(new ArrayList<>(before.entrySet()), map.removeBefore(bound));
+            expected.keySet().removeAll(before.keySet());
+            assertEquals(expected, map.toMap());
+            for (Map.Entry<RowIndex, String> row : expected.entrySet()) {
+                RowIndex key = row.getKey();
+                assertEquals(row.getValue(), map.get(cell((int) key.get(0), (int) key.get(1)), COLUMN.size()));
+            }
+        }
+    }
+
+    private void put(int... arcs) {
+        for (int arc : arcs) {
+            map.put(RowIndex.of(arc), String.valueOf(arc));
+        }
+    }
+
+    private String get(int arc) {
+        return map.get(cell(arc), COLUMN.size());
+    }
+
+    private static OID cell(int... index) {
+        OID oid = new OID(COLUMN);
+        for (int arc : index) {
+            oid.append(arc);
+        }
+        return oid;
+    }
+
+    private static List<Integer> arcs(List<Map.Entry<RowIndex, String>> rows) {
+        List<Integer> arcs = new ArrayList<>(rows.size());
+        for (Map.Entry<RowIndex, String> row : rows) {
+            arcs.add(row.getKey().intValue());
+        }
+        return arcs;
+    }
+}
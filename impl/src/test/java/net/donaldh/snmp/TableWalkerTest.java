@@ -0,0 +1,443 @@
+/*
+ * Copyright (c) 2014, 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package net.donaldh.snmp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.same;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.snmp4j.CommunityTarget;
+import org.snmp4j.PDU;
+import org.snmp4j.ScopedPDU;
+import org.snmp4j.Snmp;
+import org.snmp4j.event.ResponseEvent;
+import org.snmp4j.event.ResponseListener;
+import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.smi.Counter32;
+import org.snmp4j.smi.Integer32;
+import org.snmp4j.smi.Null;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.TimeTicks;
+import org.snmp4j.smi.UdpAddress;
+import org.snmp4j.smi.VariableBinding;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+public class TableWalkerTest {
+
+    private static final OID SYS_UP_TIME = new OID(SnmpSettings.SYS_UPTIME_OID);
+    private static final OID IF_DESCR = new OID("1.3.6.1.2.1.2.2.1.2");
+    private static final OID IF_TYPE = new OID("1.3.6.1.2.1.2.2.1.3");
+    private static final OID IF_MTU = new OID("1.3.6.1.2.1.2.2.1.4");
+
+    private Snmp snmp;
+    private CommunityTarget target;
+
+    @Before
+    public void setUp() {
+        snmp = mock(Snmp.class);
+        target = new CommunityTarget(new UdpAddress("192.0.2.1/161"), new OctetString("public"));
+        target.setVersion(SnmpConstants.version2c);
+    }
+
+    @Test
+    public void columnsAreWalkedTogether() throws Exception {
+        TableWalker walker = new TableWalker(snmp, target, Arrays.asList(IF_DESCR, IF_TYPE));
+        ListenableFuture<List<List<VariableBinding>>> result = walker.walk();
+
+        PDU first = sent(1);
+        assertEquals(PDU.GETBULK, first.getType());
+        assertEquals(0, first.getNonRepeaters());
+        assertEquals(TableWalker.maxRepetitions(0, 2), first.getMaxRepetitions());
+        assertEquals(Arrays.asList(IF_DESCR, IF_TYPE), oids(first));
+
+        respond(walker, first, cell(IF_DESCR, 1, "eth0"), cell(IF_TYPE, 1, 6),
+                cell(IF_DESCR, 2, "eth1"), cell(IF_TYPE, 2, 6));
+        PDU second = sent(2);
+        assertEquals(Arrays.asList(oid(IF_DESCR, 2), oid(IF_TYPE, 2)), oids(second));
+
+        // ifType runs into ifMtu, so only ifDescr is asked for again
+        respond(walker, second, cell(IF_DESCR, 3, "eth2"), cell(IF_MTU, 1, 1500),
+                cell(IF_DESCR, 4, "eth3"), cell(IF_MTU, 2, 1500));
+        assertFalse(walker.isDone(0));
+        assertTrue(walker.isDone(1));
+        PDU third = sent(3);
+        assertEquals(Collections.singletonList(oid(IF_DESCR, 4)), oids(third));
+
+        respond(walker, third, cell(IF_TYPE, 1, 6));
+        assertTrue(result.isDone());
+        assertTrue(walker.isComplete());
+        List<List<VariableBinding>> columns = result.get();
+        assertEquals(Arrays.asList(oid(IF_DESCR, 1), oid(IF_DESCR, 2), oid(IF_DESCR, 3), oid(IF_DESCR, 4)),
+                oids(columns.get(0)));
+        assertEquals(Arrays.asList(oid(IF_TYPE, 1), oid(IF_TYPE, 2)), oids(columns.get(1)));
+    }
+
+    @Test
+    public void scalarsAreNonRepeatersOfTheFirstRequest() throws Exception {
+        TableWalker walker = new TableWalker(snmp, target, Collections.singletonList(SYS_UP_TIME),
+                Collections.singletonList(IF_DESCR));
+        walker.walk();
+
+        PDU first = sent(1);
+        assertEquals(1, first.getNonRepeaters());
+        assertEquals(Arrays.asList(SYS_UP_TIME, IF_DESCR), oids(first));
+
+        respond(walker, first, new VariableBinding(oid(SYS_UP_TIME, 0), new TimeTicks(4200)),
+                cell(IF_DESCR, 1, "eth0"), cell(IF_DESCR, 2, "eth1"));
+        PDU second = sent(2);
+        assertEquals(0, second.getNonRepeaters());
+        assertEquals(Collections.singletonList(oid(IF_DESCR, 2)), oids(second));
+        assertEquals(1, walker.getScalars().size());
+        assertEquals(new TimeTicks(4200), walker.getScalars().get(0).getVariable());
+    }
+
+    @Test
+    public void endOfMibViewEndsTheColumn() throws Exception {
+        TableWalker walker = new TableWalker(snmp, target, Collections.singletonList(IF_DESCR));
+        ListenableFuture<List<List<VariableBinding>>> result = walker.walk();
+
+        respond(walker, sent(1), cell(IF_DESCR, 1, "eth0"),
+                new VariableBinding(oid(IF_DESCR, 1), Null.endOfMibView));
+
+        sent(1);
+        assertTrue(walker.isComplete());
+        assertEquals(Collections.singletonList(oid(IF_DESCR, 1)), oids(result.get().get(0)));
+    }
+
+    @Test
+    public void oidThatDoesNotAdvanceEndsTheColumn() throws Exception {
+        TableWalker walker = new TableWalker(snmp, target, Collections.singletonList(IF_DESCR));
+        ListenableFuture<List<List<VariableBinding>>> result = walker.walk();
+
+        respond(walker, sent(1), cell(IF_DESCR, 2, "eth1"), cell(IF_DESCR, 1, "eth0"));
+
+        sent(1);
+        assertEquals(Collections.singletonList(oid(IF_DESCR, 2)), oids(result.get().get(0)));
+    }
+
+    @Test
+    public void listenerGetsCellsInsteadOfResult() throws Exception {
+        final List<String> cells = new ArrayList<>();
+        final int[] progress = new int[1];
+        TableWalker walker = new TableWalker(snmp, target, Arrays.asList(IF_DESCR, IF_TYPE))
+                .setListener(new TableWalker.Listener() {
+
+                    @Override
+                    public void onCell(int column, VariableBinding binding) {
+                        cells.add(column + ":" + binding.getOid());
+                    }
+
+                    @Override
+                    public void onProgress(TableWalker source) {
+                        progress[0]++;
+                    }
+
+                });
+        ListenableFuture<List<List<VariableBinding>>> result = walker.walk();
+
+        respond(walker, sent(1), cell(IF_DESCR, 1, "eth0"), cell(IF_TYPE, 1, 6));
+        respond(walker, sent(2), cell(IF_TYPE, 1, 6), cell(IF_MTU, 1, 1500));
+
+        assertEquals(Arrays.asList("0:" + oid(IF_DESCR, 1), "1:" + oid(IF_TYPE, 1)), cells);
+        assertEquals(2, progress[0]);
+        assertTrue(result.get().get(0).isEmpty());
+        assertTrue(result.get().get(1).isEmpty());
+    }
+
+    @Test
+    public void tooBigIsRetriedWithFewerRepetitions() throws Exception {
+        DeviceProfile profile = new DeviceProfile();
+        TableWalker walker = new TableWalker(snmp, target, Collections.singletonList(IF_DESCR))
+                .setProfile(profile);
+        ListenableFuture<List<List<VariableBinding>>> result = walker.walk();
+
+        PDU first = sent(1);
+        respond(walker, first, PDU.tooBig);
+
+        PDU second = sent(2);
+        assertEquals(first.getMaxRepetitions() / 2, second.getMaxRepetitions());
+        assertEquals(oids(first), oids(second));
+
+        respond(walker, second, cell(IF_DESCR, 1, "eth0"), cell(IF_TYPE, 1, 6));
+        assertTrue(walker.isComplete());
+        assertEquals(1, result.get().get(0).size());
+    }
+
+    @Test
+    public void tooBigWithoutProfileEndsIncomplete() throws Exception {
+        TableWalker walker = new TableWalker(snmp, target, Collections.singletonList(IF_DESCR));
+        ListenableFuture<List<List<VariableBinding>>> result = walker.walk();
+
+        respond(walker, sent(1), PDU.tooBig);
+
+        sent(1);
+        assertTrue(result.isDone());
+        assertFalse(walker.isComplete());
+    }
+
+    @Test
+    public void timeoutIsRetriedWithLongerTimeout() throws Exception {
+        TableWalker walker = new TableWalker(snmp, target, Collections.singletonList(IF_DESCR))
+                .setPolicy(new RequestPolicy(1000, 2));
+        walker.walk();
+        assertEquals(1000, target.getTimeout());
+        assertEquals(0, target.getRetries());
+
+        PDU first = sent(1);
+        timeout(walker, first);
+        PDU second = sent(2);
+        assertEquals(oids(first), oids(second));
+        assertEquals(2000, target.getTimeout());
+
+        timeout(walker, second);
+        sent(3);
+        assertEquals(4000, target.getTimeout());
+
+        // An answer restores the timeout of a first attempt
+        respond(walker, sent(3), cell(IF_DESCR, 1, "eth0"));
+        sent(4);
+        assertEquals(1000, target.getTimeout());
+    }
+
+    @Test
+    public void timedOutRequestResumesAfterLastCell() throws Exception {
+        TableWalker walker = new TableWalker(snmp, target, Arrays.asList(IF_DESCR, IF_TYPE))
+                .setPolicy(new RequestPolicy(1000, 1));
+        ListenableFuture<List<List<VariableBinding>>> result = walker.walk();
+
+        respond(walker, sent(1), cell(IF_DESCR, 1, "eth0"), cell(IF_TYPE, 1, 6),
+                cell(IF_DESCR, 2, "eth1"), cell(IF_MTU, 1, 1500));
+        timeout(walker, sent(2));
+
+        PDU resumed = sent(3);
+        assertEquals(Collections.singletonList(oid(IF_DESCR, 2)), oids(resumed));
+
+        respond(walker, resumed, cell(IF_TYPE, 1, 6));
+        assertTrue(walker.isComplete());
+        assertEquals(Arrays.asList(oid(IF_DESCR, 1), oid(IF_DESCR, 2)), oids(result.get().get(0)));
+    }
+
+    @Test
+    public void timeoutAfterCellsEndsIncomplete() throws Exception {
+        TableWalker walker = new TableWalker(snmp, target, Collections.singletonList(IF_DESCR))
+                .setPolicy(new RequestPolicy(1000, 1));
+        ListenableFuture<List<List<VariableBinding>>> result = walker.walk();
+
+        respond(walker, sent(1), cell(IF_DESCR, 1, "eth0"));
+        timeout(walker, sent(2));
+        timeout(walker, sent(3));
+
+        sent(3);
+        assertTrue(result.isDone());
+        assertFalse(walker.isComplete());
+        assertEquals(Collections.singletonList(oid(IF_DESCR, 1)), oids(result.get().get(0)));
+    }
+
+    @Test
+    public void timeoutBeforeAnyCellFailsTheWalk() throws Exception {
+        TableWalker walker = new TableWalker(snmp, target, Collections.singletonList(IF_DESCR))
+                .setPolicy(new RequestPolicy(1000, 1));
+        ListenableFuture<List<List<VariableBinding>>> result = walker.walk();
+
+        timeout(walker, sent(1));
+        timeout(walker, sent(2));
+
+        sent(2);
+        assertFailed(result, TimeoutException.class);
+    }
+
+    @Test
+    public void retriesRestartAfterAnAnswer() throws Exception {
+        TableWalker walker = new TableWalker(snmp, target, Collections.singletonList(IF_DESCR))
+                .setPolicy(new RequestPolicy(1000, 1));
+        ListenableFuture<List<List<VariableBinding>>> result = walker.walk();
+
+        timeout(walker, sent(1));
+        respond(walker, sent(2), cell(IF_DESCR, 1, "eth0"));
+        timeout(walker, sent(3));
+
+        sent(4);
+        assertFalse(result.isDone());
+    }
+
+    @Test
+    public void resumesAreBoundedOverTheWalk() throws Exception {
+        TableWalker walker = new TableWalker(snmp, target, Collections.singletonList(IF_DESCR))
+                .setPolicy(new RequestPolicy(1000, 100));
+        ListenableFuture<List<List<VariableBinding>>> result = walker.walk();
+
+        respond(walker, sent(1), cell(IF_DESCR, 1, "eth0"));
+        int sends = 2;
+        for (int i = 0; i < TableWalker.MAX_RESUMES; i++) {
+            // Answers in between restart the retries of each request, but not the count over the walk
+            timeout(walker, sent(sends++));
+            respond(walker, sent(sends++), cell(IF_DESCR, i + 2, "eth" + (i + 1)));
+        }
+        assertFalse(result.isDone());
+
+        timeout(walker, sent(sends));
+        sent(sends);
+        assertTrue(result.isDone());
+        assertFalse(walker.isComplete());
+        assertEquals(TableWalker.MAX_RESUMES + 1, result.get().get(0).size());
+    }
+
+    @Test
+    public void timeoutLeavesProfileAlone() throws Exception {
+        DeviceProfile profile = new DeviceProfile();
+        String learned = profile.toString();
+        TableWalker walker = new TableWalker(snmp, target, Collections.singletonList(IF_DESCR))
+                .setProfile(profile).setPolicy(new RequestPolicy(1000, 1));
+        walker.walk();
+
+        PDU first = sent(1);
+        timeout(walker, first);
+
+        PDU second = sent(2);
+        assertEquals(first.getMaxRepetitions(), second.getMaxRepetitions());
+        assertEquals(learned, profile.toString());
+    }
+
+    @Test
+    public void errorKeepsCellsReceivedBefore() throws Exception {
+        TableWalker walker = new TableWalker(snmp, target, Collections.singletonList(IF_DESCR));
+        ListenableFuture<List<List<VariableBinding>>> result = walker.walk();
+
+        respond(walker, sent(1), cell(IF_DESCR, 1, "eth0"));
+        respond(walker, sent(2), PDU.genErr);
+
+        assertFalse(walker.isComplete());
+        assertEquals(Collections.singletonList(oid(IF_DESCR, 1)), oids(result.get().get(0)));
+    }
+
+    @Test
+    public void reportFailsTheWalk() throws Exception {
+        TableWalker walker = new TableWalker(snmp, target, Collections.singletonList(IF_DESCR));
+        ListenableFuture<List<List<VariableBinding>>> result = walker.walk();
+
+        PDU request = sent(1);
+        ScopedPDU report = new ScopedPDU();
+        report.setType(PDU.REPORT);
+        // usmStatsUnknownEngineIDs
+        report.add(new VariableBinding(new OID("1.3.6.1.6.3.15.1.1.4.0"), new Counter32(1)));
+        walker.onResponse(new ResponseEvent(snmp, null, request, report, null));
+
+        assertFailed(result, IOException.class);
+        sent(1);
+    }
+
+    @Test
+    public void sendFailureFailsTheWalk() throws Exception {
+        doThrow(new IOException("Transport closed")).when(snmp)
+                .send(any(PDU.class), same(target), any(), any(ResponseListener.class));
+        TableWalker walker = new TableWalker(snmp, target, Collections.singletonList(IF_DESCR));
+
+        assertFailed(walker.walk(), IOException.class);
+    }
+
+    @Test
+    public void missingTargetFailsTheWalk() throws Exception {
+        TableWalker walker = new TableWalker(snmp, null, Collections.singletonList(IF_DESCR));
+
+        assertFailed(walker.walk(), IOException.class);
+    }
+
+    @Test
+    public void repetitionsFitOneDatagram() {
+        assertEquals(SnmpSettings.MAXREPETITIONS, TableWalker.maxRepetitions(0, 1));
+        int repetitions = TableWalker.maxRepetitions(1, 20);
+        assertTrue(repetitions * 20 * SnmpSettings.VARBIND_SIZE <= SnmpSettings.MAX_PDU_SIZE);
+        assertEquals(1, TableWalker.maxRepetitions(0, 100000));
+    }
+
+    /*
+     * The last of the requests sent so far, of which there must be the
+     * given number.
+     */
+    private PDU sent(int count) throws IOException {
+        ArgumentCaptor<PDU> captor = ArgumentCaptor.forClass(PDU.class);
+        verify(snmp, times(count)).send(captor.capture(), same(target), any(), any(ResponseListener.class));
+        return captor.getAllValues().get(count - 1);
+    }
+
+    private void respond(TableWalker walker, PDU request, VariableBinding... bindings) {
+        PDU response = new PDU();
+        response.setType(PDU.RESPONSE);
+        for (VariableBinding binding : bindings) {
+            response.add(binding);
+        }
+        walker.onResponse(new ResponseEvent(snmp, null, request, response, null));
+    }
+
+    private void timeout(TableWalker walker, PDU request) {
+        walker.onResponse(new ResponseEvent(snmp, null, request, null, null));
+    }
+
+    private void respond(TableWalker walker, PDU request, int errorStatus) {
+        PDU response = new PDU();
+        response.setType(PDU.RESPONSE);
+        response.setErrorStatus(errorStatus);
+        walker.onResponse(new ResponseEvent(snmp, null, request, response, null));
+    }
+
+    private static void assertFailed(ListenableFuture<?> future, Class<? extends Throwable> cause)
+            throws InterruptedException {
+        assertTrue(future.isDone());
+        try {
+            future.get();
+            fail("Walk did not fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().toString(), cause.isInstance(e.getCause()));
+        }
+    }
+
+    private static VariableBinding cell(OID column, int index, String value) {
+        return new VariableBinding(oid(column, index), new OctetString(value));
+    }
+
+    private static VariableBinding cell(OID column, int index, int value) {
+        return new VariableBinding(oid(column, index), new Integer32(value));
+    }
+
+    private static OID oid(OID column, int index) {
+        return new OID(column).append(index);
+    }
+
+    private static List<OID> oids(PDU pdu) {
+        return oids(pdu.getVariableBindings());
+    }
+
+    private static List<OID> oids(List<? extends VariableBinding> bindings) {
+        List<OID> oids = new ArrayList<>(bindings.size());
+        for (VariableBinding binding : bindings) {
+            oids.add(binding.getOid());
+        }
+        return oids;
+    }
+}